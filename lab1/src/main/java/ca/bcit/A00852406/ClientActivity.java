@@ -1,32 +1,47 @@
 package ca.bcit.A00852406;
 
 import android.app.Activity;
+import android.content.ComponentName;
 import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
 import android.graphics.Color;
 import android.location.Criteria;
-import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.SystemClock;
 import android.view.View;
 import android.view.Window;
+import android.widget.CheckBox;
 import android.widget.EditText;
 import android.location.Location;
 import android.location.LocationListener;
 import android.location.LocationManager;
 import android.widget.TextView;
 
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.InetAddress;
+import ca.bcit.A00852406.util.FirstFrame;
+import ca.bcit.A00852406.util.Tracer;
+
+import java.io.File;
+import java.io.IOException;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
-import java.nio.ByteBuffer;
-import java.util.Scanner;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * Encapsulates the client side of the application.
  *
- * This class allows the user to specify a server (port and IP address) to send their location updates
- * to and to start and stop the gathering of location data.
+ * This class allows the user to specify servers (addresses and a default port) to send their location
+ * updates to and to start and stop the gathering of location data. Each update goes to the fastest
+ * server that's answering, or to the two fastest if the user asks for duplicates (see
+ * {@link ServerPool}); each server's round trip time and loss are shown in the log. Live runs are
+ * recorded to a fix log, and a recorded track can be replayed through the same path as live updates
+ * at a multiple of real time to reproduce a run.
+ *
+ * The location provider is only chosen when plotting starts, so that opening the screen doesn't wait
+ * for it; the time to the first interactive frame is shown in the log.
  *
  * @author Shane Spoor
  */
@@ -34,71 +49,79 @@ public class ClientActivity extends Activity
 {
     private LocationListener    listener;   /** A listener to listen for and respond to location updates. */
     private LocationManager     manager;    /** A location manager to determine the location provider. */
-    private String              provider;   /** The string identifying the chosen location provider. */
+    private String              provider;   /** The string identifying the chosen location provider, or null until plotting starts. */
+    private TrackingService     service;    /** The service that sends the data, or null until the activity is bound to it. */
+
+    private static final String REPLAY_GPX      = "replay.gpx";     /** The GPX track replayed, if present in the external files directory. */
+    private static final String RECORDED_LOG    = "track.fixlog";   /** The fix log each live run is recorded to, and replayed if there's no GPX track. */
+
+    private final Handler       handler = new Handler();    /** Runs replays on the main thread. */
+    private TrackReplay         replay;                     /** The current replay, or null if none has been started. */
+    private FixLogWriter        recorder;                   /** Records the live run, or null if there isn't one. */
+    private ServerPool          servers;                    /** The servers entered when sending last started. */
+    private final ExecutorService loader = Executors.newSingleThreadExecutor(); /** Loads recorded tracks for replay. */
+    private int                 replayRequests;             /** Counts replay requests and stops, so a track loaded for an earlier one isn't replayed. */
 
     /**
-     * This object encapsulates an asynchronous task to send the location data to the network.
-     *
-     * No network calls may be used on the main thread, so it's necessary to create another thread to
-     * update the server.
-     *
-     * @author Shane Spoor
+     * Displays the errors reported by the tracking service when a fix can't be sent, and its reports
+     * on the servers.
      */
-    private class SendLocationUpdate extends AsyncTask<String, String, Void> {
-        private static final int SERVER_ADDR_IDX    = 0; /** The index of the server's IP address string in the params array. */
-        private static final int SERVER_PORT_IDX    = 1; /** The index of the string representing the port to send on. */
-        private static final int DATA_IDX           = 2; /** The index into the params array of the data to send. */
+    private final TrackingService.SendListener sendUpdates = new TrackingService.SendListener()
+    {
+        public void onSendFailure(String message)
+        {
+            show(message, Color.RED);
+        }
 
-        private InetAddress     serverAddress;           /** A byte representation of the server's internet address. */
-        private DatagramSocket  udpSock;                 /** A UDP socket on which to send data. */
-        private DatagramPacket  dgramPacket;             /** A datagram packet to hold the data to be sent. */
-        private int             port;                    /** The port on which to send the data. */
+        public void onSendStatus(String message)
+        {
+            show(message, Color.BLACK);
+        }
+    };
 
-        /**
-         * Creates a socket and datagram and sends the data to the specified address on the specified port.
-         *
-         * If the function raises an exception at any point, the exception is caught and published to
-         * UI thread.
-         *
-         * @param params String representations of the server IP address and port, and the data to be sent.
-         * @return Null
-         * @author Shane Spoor
-         */
-        protected Void doInBackground(String... params) {
-            try
+    /**
+     * Reports the outcome of writing a JSON trace.
+     */
+    private final Tracer.Callback traceWritten = new Tracer.Callback()
+    {
+        public void onTraceWritten(final File file, final int events)
+        {
+            runOnUiThread(new Runnable()
             {
-                Scanner scan;
-                serverAddress   = InetAddress.getByName(params[SERVER_ADDR_IDX]);
-                port            = Integer.parseInt(params[SERVER_PORT_IDX]);
-                udpSock         = new DatagramSocket();
-                dgramPacket     = new DatagramPacket(params[DATA_IDX].getBytes(), params[DATA_IDX].length(), serverAddress, port);
-                udpSock.send(dgramPacket);
-
-            } catch (Exception e) {
-                publishProgress("Send failure: " + e.getMessage() + "\n");
-            } finally {
-                if(udpSock != null)
-                    udpSock.close();
-                return null;
-            }
+                public void run()
+                {
+                    show("Wrote " + events + " trace events to " + file.getPath() + "\n", Color.BLACK);
+                }
+            });
         }
 
-        /**
-         * Displays the error message sent by the background thread.
-         *
-         * The background thread for this task only publishes updates on error, so this function
-         * assumes that any string received is an error string.
-         *
-         * @param results The error string to be displayed/
-         * @author Shane Spoor
-         */
-        protected void onProgressUpdate(String... results)
+        public void onTraceFailure(final String message)
         {
-            TextView programLog = (TextView)findViewById(R.id.programLog);
-            programLog.setTextColor(Color.RED);
-            programLog.append(results[0]);
+            runOnUiThread(new Runnable()
+            {
+                public void run()
+                {
+                    show(message, Color.RED);
+                }
+            });
         }
-    }
+    };
+
+    /**
+     * Binds to the tracking service, which does the actual sending.
+     */
+    private final ServiceConnection connection = new ServiceConnection()
+    {
+        public void onServiceConnected(ComponentName name, IBinder binder)
+        {
+            service = ((TrackingService.LocalBinder)binder).getService();
+        }
+
+        public void onServiceDisconnected(ComponentName name)
+        {
+            service = null;
+        }
+    };
 
     /**
      * An object to listen for updates, display them, and send them to the server.
@@ -107,21 +130,7 @@ public class ClientActivity extends Activity
     private class ListenForUpdates implements LocationListener
     {
         private TextView programLog = (TextView)findViewById(R.id.programLog);
-        private String IP;
-        private String port;
-
-        /**
-         * Creates a new ListenForUpdates object.
-         *
-         * @param IPStr     The string representation of the server's IP address.
-         * @param portStr   The string representation of the port on which to send.
-         */
-        public ListenForUpdates(String IPStr, String portStr)
-        {
-            super();
-            IP = IPStr;
-            port = portStr;
-        }
+        private boolean quiet;  /** Whether updates are sent without being displayed. */
 
         /**
          * Must be implemented (specified in <i>LocationListener</i>).
@@ -148,16 +157,19 @@ public class ClientActivity extends Activity
         {}
 
         /**
-         * Displays the location value on the client's screen and sends it to the server.
+         * Displays the location value on the client's screen and sends it to the servers.
          *
-         * The function reads and formats the location data, then creates an AsyncTask to forward the
-         * data to the server specified by the user.
+         * The function reads and formats the location data, then hands it to the tracking service to
+         * forward to the servers specified by the user. During a live run the location is also
+         * recorded to the fix log.
          *
          * @param loc The location data read from the provider.
          * @author Shane Spoor
          */
         public void onLocationChanged(Location loc)
         {
+            final long fixTrace     = Tracer.begin("client.fix");
+            final long formatTrace  = Tracer.begin("client.format");
             final DateFormat df     = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ");
             final String nowAsISO   = df.format(loc.getTime());
             final Double latVal     = loc.getLatitude();
@@ -167,51 +179,47 @@ public class ClientActivity extends Activity
             final TextView log      = (TextView)findViewById(R.id.programLog);
 
             String formattedData = "Time: " + nowAsISO + "\nLatitude: " + latStr + "\nLongitude: " + longStr + "\n";
+            String payload       = latVal.toString() + " " + longVal.toString() + " " + nowAsISO;
+            Tracer.end(formatTrace);
 
-            log.setTextColor(Color.BLACK);
-            log.append(formattedData + "\n");
-            new SendLocationUpdate().execute(IP, port, latVal.toString() + " " + longVal.toString() + " " + nowAsISO);
+            if(!quiet)
+            {
+                long trace = Tracer.begin("client.display");
+                log.setTextColor(Color.BLACK);
+                log.append(formattedData + "\n");
+                Tracer.end(trace);
+            }
+            if(service != null)
+                service.send(payload);
+            if(recorder != null)
+            {
+                try
+                {
+                    recorder.append(loc.getTime(), latVal, longVal);
+                } catch (IOException e) {
+                    show("Record failure: " + e.getMessage() + "\n", Color.RED);
+                    closeRecorder();
+                }
+            }
+            Tracer.end(fixTrace);
         }
 
         /**
-         * Sets the port string to the string <i>>newIP</i>.
-         *
-         * If <i>newIP</i> is null, the IP address string is left unchanged and the function returns null.
-         *
-         * @param newIP   The new IP address to store.
-         * @return        Returns <i>newIP</i>.
+         * Sets whether updates are displayed. Replaying as fast as possible produces updates faster
+         * than the log can show them, so they're only sent.
          *
-         * @autbor Shane Spoor
+         * @param quiet True to send updates without displaying them.
          */
-        public String setIP(String newIP)
+        public void setQuiet(boolean quiet)
         {
-            IP = newIP;
-            return IP;
-        }
-
-        /**
-         * Sets the port string to the string <i>>newPort</i>.
-         *
-         * If <i>newPort</i> is null, the port is left unchanged and the function returns null.
-         *
-         * @param newPort   The new port to store.
-         * @return          Returns <i>newPort</i>.
-         *
-         * @autbor Shane Spoor
-         */
-        public String setPort(String newPort)
-        {
-            if(newPort == null)
-                return null;
-
-            port = newPort;
-            return port;
+            this.quiet = quiet;
         }
     }
 
 
     /**
-     * Sets the initial layout and creates a LocationManager for use with the plotting functions.
+     * Sets the initial layout, creates a LocationManager for use with the plotting functions and binds
+     * to the tracking service. The time until the first frame has been drawn is shown in the log.
      *
      * @param savedInstanceState The state of the application before it was destroyed by the OS (e.g., the
      *                           user rotated the screen, it was swapped out of memory, etc). (currently unused)
@@ -219,10 +227,33 @@ public class ClientActivity extends Activity
      */
     @Override
     protected void onCreate(Bundle savedInstanceState) {
+        long createTime = SystemClock.uptimeMillis();
         super.onCreate(savedInstanceState);
         this.requestWindowFeature(Window.FEATURE_NO_TITLE);
         setContentView(R.layout.activity_client);
 
+        manager = (LocationManager)getSystemService(Context.LOCATION_SERVICE);
+        bindService(new Intent(this, TrackingService.class), connection, Context.BIND_AUTO_CREATE);
+        FirstFrame.watch(getWindow().getDecorView(), createTime, new FirstFrame.Listener()
+        {
+            public void onFirstFrame(long elapsedMs)
+            {
+                show("First frame in " + elapsedMs + " ms\n", Color.BLACK);
+            }
+        });
+    }
+
+    /**
+     * Chooses the best enabled location provider for coarse, free updates. Providers can be enabled
+     * and disabled while the activity is open, so this is done every time plotting starts.
+     *
+     * @return The provider's name, or null if no provider is enabled.
+     *
+     * @author Shane Spoor
+     */
+    private String resolveProvider()
+    {
+        long     trace    = Tracer.begin("client.resolveProvider");
         Criteria criteria = new Criteria();
         criteria.setAccuracy(Criteria.ACCURACY_COARSE);
         criteria.setPowerRequirement(Criteria.POWER_MEDIUM);
@@ -230,27 +261,235 @@ public class ClientActivity extends Activity
         criteria.setHorizontalAccuracy(Criteria.ACCURACY_MEDIUM);
         criteria.setVerticalAccuracy(Criteria.ACCURACY_MEDIUM);
 
-        manager = (LocationManager)getSystemService(Context.LOCATION_SERVICE);
-        provider = manager.getBestProvider(criteria, true);
+        String best = manager.getBestProvider(criteria, true);
+        Tracer.end(trace);
+        return best;
+    }
+
+    /**
+     * Stops listening for location updates and unbinds from the tracking service.
+     *
+     * The activity handles rotation itself (see the manifest), so this is only called when the user
+     * leaves the client for good.
+     *
+     * @author Shane Spoor
+     */
+    @Override
+    protected void onDestroy()
+    {
+        super.onDestroy();
+        if(listener != null)
+            manager.removeUpdates(listener);
+        if(replay != null)
+            replay.stop();
+        loader.shutdownNow();
+        closeRecorder();
+        if(service != null)
+            service.stopSending();
+        unbindService(connection);
+        service = null;
     }
 
     /**
      * Registers the location listener with the best available provider and tells it to begin listening.
      *
      * If the user enters an empty string for the port number and/or IP address, the function displays
-     * an error message in the respective text edit control and doesn't start plotting the points.
+     * an error message in the respective text edit control and doesn't start plotting the points; nor
+     * does it if no location provider is enabled. The run is recorded to a fix log in the app's
+     * external files directory, replacing the last one.
      *
      * @param view Unused
      *
      * @author Shane Spoor
      */
     public void startPlotting(View view)
+    {
+        ListenForUpdates target = prepareListener();
+        if(target == null)
+            return;
+        provider = resolveProvider();
+        if(provider == null)
+        {
+            show("No location provider is enabled\n", Color.RED);
+            return;
+        }
+        if(replay != null)
+            replay.stop();
+        replayRequests++;
+
+        File dir = getExternalFilesDir(null);
+        if(recorder == null && dir != null)
+        {
+            try
+            {
+                recorder = new FixLogWriter(new File(dir, RECORDED_LOG));
+            } catch (IOException e) {
+                show("Record failure: " + e.getMessage() + "\n", Color.RED);
+            }
+        }
+
+        target.setQuiet(false);
+        service.startSending(servers, sendUpdates);
+        manager.requestLocationUpdates(provider, 0, 1, listener);
+    }
+
+    /**
+     * Replays a recorded track through the location listener instead of the location provider.
+     *
+     * The track is replay.gpx in the app's external files directory if there is one, or else the fix
+     * log of the last live run. It's replayed at the multiple of real time entered by the user, or as
+     * fast as possible if none is entered; at that speed updates are sent without being displayed.
+     * Once every update has been sent, the rate at which they were fed to the service and the rate at
+     * which the service sent them are shown. The track is loaded on the activity's loader thread; if
+     * plotting is started or stopped meanwhile, it isn't replayed.
+     *
+     * @param view Unused
+     *
+     * @author Shane Spoor
+     */
+    public void startReplay(View view)
+    {
+        final ListenForUpdates target = prepareListener();
+        if(target == null)
+            return;
+
+        EditText     editSpeed = (EditText)findViewById(R.id.replay_speed);
+        String       speedStr  = editSpeed.getText().toString();
+        final double speed;
+        try
+        {
+            speed = speedStr.equals("") ? TrackReplay.AS_FAST_AS_POSSIBLE : Double.parseDouble(speedStr);
+        } catch (NumberFormatException e) {
+            editSpeed.setText("");
+            editSpeed.setHintTextColor(Color.RED);
+            editSpeed.setHint("Speed must be a number");
+            return;
+        }
+
+        File dir  = getExternalFilesDir(null);
+        File file = dir == null ? null : new File(dir, REPLAY_GPX);
+        if(file != null && !file.exists())
+            file = new File(dir, RECORDED_LOG);
+        if(file == null || !file.exists())
+        {
+            show("Replay failure: no " + REPLAY_GPX + " or " + RECORDED_LOG + " to replay\n", Color.RED);
+            return;
+        }
+
+        stopPlotting(null);
+        final File track   = file;
+        final int  request = ++replayRequests;
+        loader.execute(new Runnable()
+        {
+            public void run()
+            {
+                RecordedTrack loaded = null;
+                String        error  = null;
+                try
+                {
+                    loaded = RecordedTrack.load(track);
+                } catch (IOException e) {
+                    error = e.getMessage();
+                }
+
+                final RecordedTrack result = loaded;
+                final String        reason = error;
+                handler.post(new Runnable()
+                {
+                    public void run()
+                    {
+                        if(service == null || request != replayRequests)
+                            return;
+                        if(result == null)
+                            show("Replay failure: " + reason + "\n", Color.RED);
+                        else
+                            startReplay(result, track, speed, target);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Starts replaying a loaded track.
+     */
+    private void startReplay(final RecordedTrack track, File file, double speed, ListenForUpdates target)
+    {
+        final long sentBefore = service.getDatagramsSent();
+        show("Replaying " + track.size() + " points from " + file.getName()
+             + (speed > 0 ? " at " + speed + "x\n" : " as fast as possible\n"), Color.BLACK);
+
+        target.setQuiet(speed <= TrackReplay.AS_FAST_AS_POSSIBLE);
+        service.startSending(servers, sendUpdates);
+        replay = new TrackReplay(track, speed, target, handler, new TrackReplay.Listener()
+        {
+            public void onReplayFinished(final int points, final long elapsedMs)
+            {
+                final long fed = SystemClock.uptimeMillis() - elapsedMs;
+                service.whenSent(new Runnable()
+                {
+                    public void run()
+                    {
+                        long sendMs = Math.max(1, SystemClock.uptimeMillis() - fed);
+                        long sent   = service.getDatagramsSent() - sentBefore;
+                        show("Replayed " + points + " points in " + elapsedMs + " ms ("
+                             + points * 1000 / Math.max(1, elapsedMs) + " fixes/s); "
+                             + sent + " datagrams sent in " + sendMs + " ms (" + sent * 1000 / sendMs + " datagrams/s)\n",
+                             Color.BLACK);
+                    }
+                });
+            }
+        });
+        replay.start();
+    }
+
+    /**
+     * Turns tracing of the client pipeline on or off.
+     *
+     * Where platform tracing is available the sections show up in systrace; otherwise they're written
+     * to a Chrome JSON trace in the app's external files directory when tracing is turned off.
+     *
+     * @param view Unused
+     *
+     * @author Shane Spoor
+     */
+    public void toggleTrace(View view)
+    {
+        if(Tracer.isEnabled())
+        {
+            Tracer.stop(traceWritten);
+            show("Tracing stopped\n", Color.BLACK);
+            return;
+        }
+
+        File dir = getExternalFilesDir(null);
+        if(!Tracer.usesPlatformTrace() && dir == null)
+        {
+            show("Trace failure: external storage unavailable\n", Color.RED);
+            return;
+        }
+        Tracer.start(dir == null ? null : new File(dir, "trace-" + System.currentTimeMillis() + ".json"));
+        show(Tracer.usesPlatformTrace() ? "Tracing to systrace\n" : "Tracing\n", Color.BLACK);
+    }
+
+    /**
+     * Reads the servers' addresses and the default port into the server pool, and creates the
+     * location listener if necessary.
+     *
+     * If the user enters an empty string for the port number and/or the addresses, the function
+     * displays an error message in the respective text edit control. A port that isn't a number from
+     * 1 to 65535 is cleared and the error shown on the port field, and an address list that can't be
+     * read is cleared and the reason shown in its place.
+     *
+     * @return The listener, or null if the servers can't be read or the service isn't bound yet.
+     */
+    private ListenForUpdates prepareListener()
     {
         EditText editIP = (EditText) findViewById(R.id.IP);
         EditText editPort = (EditText) findViewById(R.id.port);
         boolean error = false;
 
-        if(editIP.getText().toString().equals(""))
+        if(editIP.getText().toString().trim().equals(""))
         {
             editIP.setHintTextColor(Color.RED);
             editIP.setHint("IP cannot be empty");
@@ -263,25 +502,86 @@ public class ClientActivity extends Activity
             error = true;
         }
         if(error)
-            return;
-        if(listener == null)
-            listener = new ListenForUpdates(editIP.getText().toString(), editPort.getText().toString());
+            return null;
 
-        manager.requestLocationUpdates(provider, 0, 1, listener);
-        ((ListenForUpdates)listener).setIP(editIP.getText().toString());
-        ((ListenForUpdates)listener).setPort(editPort.getText().toString());
+        int port;
+        try
+        {
+            port = Integer.parseInt(editPort.getText().toString());
+        } catch (NumberFormatException e) {
+            port = 0;
+        }
+        if(port < 1 || port > 65535)
+        {
+            editPort.setText("");
+            editPort.setHintTextColor(Color.RED);
+            editPort.setHint("Port must be 1 to 65535");
+            return null;
+        }
 
+        try
+        {
+            servers = new ServerPool(ServerPool.parse(editIP.getText().toString(), port),
+                                     ((CheckBox)findViewById(R.id.duplicate)).isChecked());
+        } catch (IllegalArgumentException e) {
+            editIP.setText("");
+            editIP.setHintTextColor(Color.RED);
+            editIP.setHint(e.getMessage());
+            return null;
+        }
+        if(service == null)
+            return null;
+        if(listener == null)
+            listener = new ListenForUpdates();
+        return (ListenForUpdates)listener;
     }
 
     /**
-     * Removes all pending updates from the listener and unregisters it from the location provider.
+     * Removes all pending updates from the listener and unregisters it from the location provider,
+     * stops any replay, including one whose track is still loading, and finishes recording the live
+     * run.
      *
      * @param view Unused
      * @author Shane Spoor
      */
     public void stopPlotting(View view)
     {
+        replayRequests++;
         if(listener != null)
             manager.removeUpdates(listener);
+        if(replay != null)
+            replay.stop();
+        closeRecorder();
+        if(service != null)
+            service.stopSending();
+    }
+
+    /**
+     * Finishes recording the live run, if there is one.
+     */
+    private void closeRecorder()
+    {
+        if(recorder == null)
+            return;
+        try
+        {
+            recorder.close();
+        } catch (IOException e) {
+            show("Record failure: " + e.getMessage() + "\n", Color.RED);
+        }
+        recorder = null;
+    }
+
+    /**
+     * Displays a line in the log.
+     *
+     * @param text   The text, ending in a newline.
+     * @param colour The colour to display the log in.
+     */
+    private void show(String text, int colour)
+    {
+        TextView programLog = (TextView)findViewById(R.id.programLog);
+        programLog.setTextColor(colour);
+        programLog.append(text);
     }
 }
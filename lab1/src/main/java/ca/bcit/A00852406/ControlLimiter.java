@@ -0,0 +1,52 @@
+package ca.bcit.A00852406;
+
+/**
+ * Limits the rate at which the server answers control datagrams (subscription requests and probes)
+ * from any one source address.
+ *
+ * Control datagrams are answered before the ingest limiter sees them, so without a limit of their
+ * own a spoofed source could have the server send it datagrams at whatever rate the spoofer can
+ * manage. Each source spends tokens from a bucket that refills at {@link #RATE_HZ} up to
+ * {@link #BURST}; datagrams that find the bucket empty are dropped unanswered.
+ *
+ * The buckets live in a fixed table indexed by a hash of the source, so the limiter's memory doesn't
+ * grow with the number of sources and spoofing many sources can't exhaust it. Sources that hash to
+ * the same slot share a budget, which only ever makes the limit stricter. This class is only used
+ * by the receiving thread and is not thread-safe.
+ *
+ * @author Shane Spoor
+ */
+public class ControlLimiter
+{
+    public  static final double RATE_HZ = 4;        /** The sustained rate of control datagrams answered per source. */
+    public  static final double BURST   = 8;        /** The most control datagrams answered back to back per source. */
+    private static final int    SLOTS   = 4096;     /** The number of buckets; a power of two. */
+
+    private final double[]  tokens  = new double[SLOTS];  /** The tokens left in each bucket. */
+    private final long[]    updated = new long[SLOTS];    /** When each bucket was last refilled, or 0 if never. */
+
+    /**
+     * Spends a token from a source's bucket if it has one.
+     *
+     * @param sourceKey The source address's key (see {@link Fix#keyFor}).
+     * @param now       The current time in milliseconds.
+     * @return True if the datagram may be answered.
+     *
+     * @author Shane Spoor
+     */
+    public boolean allow(int sourceKey, long now)
+    {
+        int h = sourceKey * 0x9E3779B9;
+        int i = (h ^ (h >>> 16)) & (SLOTS - 1);
+        if(updated[i] == 0)
+            tokens[i] = BURST;
+        else
+            tokens[i] = Math.min(BURST, tokens[i] + (now - updated[i]) * RATE_HZ / 1000);
+        updated[i] = now;
+
+        if(tokens[i] < 1)
+            return false;
+        tokens[i]--;
+        return true;
+    }
+}
@@ -0,0 +1,193 @@
+package ca.bcit.A00852406;
+
+import ca.bcit.A00852406.util.LongObjectMap;
+
+/**
+ * Counts received fixes on a pyramid of map tiles for the heatmap.
+ *
+ * The grid follows the map's Web Mercator tiling: at zoom level <i>z</i> the world is 2<sup>z</sup> by
+ * 2<sup>z</sup> tiles, and each tile here is divided into {@link #CELLS} by {@link #CELLS} cells
+ * holding plain int counters. Every fix increments one cell on each level from 0 to
+ * {@link #MAX_LEVEL}, so the cost of adding a fix is constant and the map can be drawn at any zoom
+ * without revisiting the fixes. Tiles are only allocated once a fix lands in them.
+ *
+ * Each tile has a version that changes whenever one of its counters does, so a renderer can tell
+ * which tiles are dirty. A tile's version is the grid's version when it last changed, which never
+ * goes backwards, so a tile rebuilt after the grid is cleared can't match a version drawn before. The grid is fed on the server's receiving thread and read by the map's tile
+ * threads.
+ *
+ * @author Shane Spoor
+ */
+public class DensityGrid implements FixListener
+{
+    public  static final int    MAX_LEVEL   = 15;         /** The deepest zoom level counted. */
+    public  static final int    CELLS       = 32;         /** The number of cells along each side of a tile. */
+    private static final int    CELL_SHIFT  = 5;          /** log2(CELLS). */
+    private static final double MAX_LAT     = 85.0511287798; /** The latitude at which Web Mercator is cut off. */
+
+    /**
+     * The counters of one tile.
+     */
+    private static final class Tile
+    {
+        final int[] counts = new int[CELLS * CELLS]; /** The cells' counts, row by row. */
+        int         version;                         /** The grid's version when a count last changed. */
+    }
+
+    private final LongObjectMap<Tile>   tiles = new LongObjectMap<Tile>(); /** The tiles, keyed by {@link #key}. */
+    private volatile int                version;                           /** Incremented whenever any count changes; written with tiles locked, read without. */
+    private int                         clears;                            /** The number of times the grid has been cleared; guarded by tiles. */
+
+    /**
+     * Counts a fix on every level.
+     *
+     * @param fix The fix.
+     */
+    public void onFix(Fix fix)
+    {
+        synchronized(tiles)
+        {
+            version++;
+            count(fix.lat, fix.lon);
+        }
+    }
+
+    /**
+     * Counts every fix in a store snapshot, e.g. after the store has been restored from a file.
+     *
+     * The fixes are counted a chunk at a time so that the tile threads aren't locked out for long. If
+     * the grid is cleared in the meantime the remaining fixes are skipped, since they belong to the
+     * session that was cleared.
+     *
+     * @param snap The fixes to count.
+     *
+     * @author Shane Spoor
+     */
+    public void addAll(FixStore.Snapshot snap)
+    {
+        int cleared;
+        synchronized(tiles)
+        {
+            cleared = clears;
+        }
+        for(long seq = snap.start(); seq < snap.end(); )
+        {
+            long chunkEnd = Math.min(snap.end(), FixStore.Snapshot.nextChunk(seq));
+            synchronized(tiles)
+            {
+                if(clears != cleared)
+                    return;
+                version++;
+                for(; seq < chunkEnd; seq++)
+                    count(snap.lat(seq), snap.lon(seq));
+            }
+        }
+    }
+
+    /**
+     * Returns a number that changes whenever any count does.
+     *
+     * @return The grid's version.
+     */
+    public int getVersion()
+    {
+        return version;
+    }
+
+    /**
+     * Copies a tile's counts.
+     *
+     * @param zoom The tile's zoom level, from 0 to MAX_LEVEL.
+     * @param x    The tile's column.
+     * @param y    The tile's row.
+     * @param dst  Receives the CELLS * CELLS counts, row by row. Left untouched if the tile is empty.
+     * @return The tile's version, or -1 if no fix has landed in it.
+     */
+    public int copyTile(int zoom, int x, int y, int[] dst)
+    {
+        synchronized(tiles)
+        {
+            Tile tile = tiles.get(key(zoom, x, y));
+            if(tile == null)
+                return -1;
+            System.arraycopy(tile.counts, 0, dst, 0, CELLS * CELLS);
+            return tile.version;
+        }
+    }
+
+    /**
+     * Returns a tile's version without copying it.
+     *
+     * @param zoom The tile's zoom level, from 0 to MAX_LEVEL.
+     * @param x    The tile's column.
+     * @param y    The tile's row.
+     * @return The tile's version, or -1 if no fix has landed in it.
+     */
+    public int tileVersion(int zoom, int x, int y)
+    {
+        synchronized(tiles)
+        {
+            Tile tile = tiles.get(key(zoom, x, y));
+            return tile == null ? -1 : tile.version;
+        }
+    }
+
+    /**
+     * Removes every count.
+     */
+    public void clear()
+    {
+        synchronized(tiles)
+        {
+            tiles.clear();
+            clears++;
+            version++;
+        }
+    }
+
+    /**
+     * Increments the cell containing a point on every level, stamping each tile with the grid's
+     * version. Called with the tiles locked, after the version has been bumped.
+     */
+    private void count(double lat, double lon)
+    {
+        if(lat > MAX_LAT || lat < -MAX_LAT)
+            return;
+
+        // Global cell coordinates on the deepest level; each shallower level halves them.
+        double sin  = Math.sin(Math.toRadians(lat));
+        double x    = (lon + 180) / 360;
+        double y    = 0.5 - Math.log((1 + sin) / (1 - sin)) / (4 * Math.PI);
+        int    span = CELLS << MAX_LEVEL;
+        int    gx   = Math.min(span - 1, Math.max(0, (int)(x * span)));
+        int    gy   = Math.min(span - 1, Math.max(0, (int)(y * span)));
+
+        for(int z = 0; z <= MAX_LEVEL; z++)
+        {
+            int  cx   = gx >> (MAX_LEVEL - z);
+            int  cy   = gy >> (MAX_LEVEL - z);
+            long k    = key(z, cx >> CELL_SHIFT, cy >> CELL_SHIFT);
+            Tile tile = tiles.get(k);
+            if(tile == null)
+            {
+                tile = new Tile();
+                tiles.put(k, tile);
+            }
+            tile.counts[((cy & (CELLS - 1)) << CELL_SHIFT) | (cx & (CELLS - 1))]++;
+            tile.version = version;
+        }
+    }
+
+    /**
+     * Packs a tile's coordinates into a map key.
+     *
+     * @param zoom The zoom level.
+     * @param x    The column.
+     * @param y    The row.
+     * @return The key.
+     */
+    public static long key(int zoom, int x, int y)
+    {
+        return (long)zoom << 58 | (long)x << 29 | y;
+    }
+}
@@ -0,0 +1,230 @@
+package ca.bcit.A00852406;
+
+import java.net.InetAddress;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+
+/**
+ * A single location update received by the server.
+ *
+ * Clients send each fix as a datagram of the form "<i>latitude longitude time</i>", where the time
+ * is formatted as yyyy-MM-dd'T'HH:mm:ssZ. The server decodes each datagram into one of these once,
+ * on the receiving thread, and hands the same immutable object to everything that consumes fixes.
+ *
+ * @author Shane Spoor
+ */
+public class Fix
+{
+    public final String clientAddr; /** The client's address as a string, e.g. 192.168.0.2. */
+    public final int    clientKey;  /** A compact integer key identifying the client (its IPv4 address). */
+    public final double lat;        /** The latitude in degrees. */
+    public final double lon;        /** The longitude in degrees. */
+    public final String time;       /** The time of the fix as sent by the client. */
+    public final long   timeMillis; /** The time of the fix in milliseconds since the epoch. */
+    public final long   recvMillis; /** The time at which the server received the fix. */
+
+    /**
+     * Creates a new fix.
+     *
+     * @param clientAddr The client's address as a string.
+     * @param clientKey  The client's integer key.
+     * @param lat        The latitude in degrees.
+     * @param lon        The longitude in degrees.
+     * @param time       The time of the fix as sent by the client.
+     * @param timeMillis The time of the fix in milliseconds since the epoch.
+     * @param recvMillis The time at which the server received the fix.
+     */
+    public Fix(String clientAddr, int clientKey, double lat, double lon, String time, long timeMillis, long recvMillis)
+    {
+        this.clientAddr = clientAddr;
+        this.clientKey  = clientKey;
+        this.lat        = lat;
+        this.lon        = lon;
+        this.time       = time;
+        this.timeMillis = timeMillis;
+        this.recvMillis = recvMillis;
+    }
+
+    /**
+     * Returns the integer key used to identify a client.
+     *
+     * IPv4 addresses are packed into the int directly, so keys are unique for every client on an IPv4
+     * network. Other addresses fall back to the address' hash code.
+     *
+     * @param addr The client's address.
+     * @return The client's key.
+     *
+     * @author Shane Spoor
+     */
+    public static int keyFor(InetAddress addr)
+    {
+        byte[] b = addr.getAddress();
+        if(b.length != 4)
+            return addr.hashCode();
+        return (b[0] & 0xFF) << 24 | (b[1] & 0xFF) << 16 | (b[2] & 0xFF) << 8 | (b[3] & 0xFF);
+    }
+
+    /**
+     * Appends a time in ISO 8601 form, in UTC, without going through a SimpleDateFormat.
+     *
+     * The output is yyyy-MM-dd'T'HH:mm:ss followed by either "Z" or "+0000", the latter being the form
+     * clients send.
+     *
+     * @param sb     The builder to append to.
+     * @param millis The time in milliseconds since the epoch.
+     * @param zulu   True to end with "Z", false to end with "+0000".
+     *
+     * @author Shane Spoor
+     */
+    public static void appendIsoTime(StringBuilder sb, long millis, boolean zulu)
+    {
+        long days = millis / 86400000;
+        if(millis % 86400000 < 0)
+            days--;
+        int secs = (int)((millis - days * 86400000) / 1000);
+
+        // Civil date from days since 1970-01-01 (proleptic Gregorian calendar).
+        long z   = days + 719468;
+        long era = (z >= 0 ? z : z - 146096) / 146097;
+        long doe = z - era * 146097;
+        long yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+        long doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+        long mp  = (5 * doy + 2) / 153;
+        int  d   = (int)(doy - (153 * mp + 2) / 5 + 1);
+        int  m   = (int)(mp < 10 ? mp + 3 : mp - 9);
+        long y   = yoe + era * 400 + (m <= 2 ? 1 : 0);
+
+        sb.append(y).append('-');
+        pad2(sb, m).append('-');
+        pad2(sb, d).append('T');
+        pad2(sb, secs / 3600).append(':');
+        pad2(sb, secs / 60 % 60).append(':');
+        pad2(sb, secs % 60).append(zulu ? "Z" : "+0000");
+    }
+
+    /**
+     * Parses a time in ISO 8601 form, such as the times in a GPX file.
+     *
+     * Accepts yyyy-MM-dd'T'HH:mm:ss with optional fractional seconds, followed by "Z", a "+hh:mm" or
+     * "+hhmm" offset, or nothing (taken as UTC).
+     *
+     * @param s The time.
+     * @return The time in milliseconds since the epoch.
+     * @throws IllegalArgumentException If the time isn't in that form.
+     *
+     * @author Shane Spoor
+     */
+    public static long parseIsoTime(String s)
+    {
+        if(s.length() < 19 || s.charAt(4) != '-' || s.charAt(7) != '-' || s.charAt(10) != 'T'
+                || s.charAt(13) != ':' || s.charAt(16) != ':')
+            throw new IllegalArgumentException("Bad time: " + s);
+
+        int y = digits(s, 0, 4), m = digits(s, 5, 2), d = digits(s, 8, 2);
+        int i = 19;
+        int millis = 0;
+        if(i < s.length() && s.charAt(i) == '.')
+        {
+            int scale = 100;
+            for(i++; i < s.length() && Character.isDigit(s.charAt(i)); i++, scale /= 10)
+                millis += (s.charAt(i) - '0') * scale;
+        }
+
+        int offset = 0;
+        if(i < s.length() && s.charAt(i) != 'Z')
+        {
+            char sign = s.charAt(i);
+            if(sign != '+' && sign != '-')
+                throw new IllegalArgumentException("Bad time: " + s);
+            int mins = s.length() > i + 3 && s.charAt(i + 3) == ':' ? digits(s, i + 4, 2) : digits(s, i + 3, 2);
+            offset = (digits(s, i + 1, 2) * 60 + mins) * (sign == '-' ? -1 : 1);
+        }
+
+        // Days since 1970-01-01 from the civil date (the inverse of appendIsoTime).
+        long yy   = m <= 2 ? y - 1 : y;
+        long era  = (yy >= 0 ? yy : yy - 399) / 400;
+        long yoe  = yy - era * 400;
+        long doy  = (153 * (m > 2 ? m - 3 : m + 9) + 2) / 5 + d - 1;
+        long doe  = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+        long days = era * 146097 + doe - 719468;
+        long secs = days * 86400 + digits(s, 11, 2) * 3600 + digits(s, 14, 2) * 60 + digits(s, 17, 2) - offset * 60;
+        return secs * 1000 + millis;
+    }
+
+    /**
+     * Parses <i>n</i> decimal digits starting at <i>off</i>.
+     */
+    private static int digits(String s, int off, int n)
+    {
+        if(off + n > s.length())
+            throw new IllegalArgumentException("Bad time: " + s);
+        int v = 0;
+        for(int i = off; i < off + n; i++)
+        {
+            char c = s.charAt(i);
+            if(c < '0' || c > '9')
+                throw new IllegalArgumentException("Bad time: " + s);
+            v = v * 10 + (c - '0');
+        }
+        return v;
+    }
+
+    /**
+     * Appends a number from 0 to 99 as two digits.
+     */
+    private static StringBuilder pad2(StringBuilder sb, int n)
+    {
+        return sb.append((char)('0' + n / 10)).append((char)('0' + n % 10));
+    }
+
+    /**
+     * Decodes the fixes contained in client datagrams.
+     *
+     * Each decoder owns its own date parser, which isn't thread-safe, so a decoder should only be
+     * used by one thread.
+     *
+     * @author Shane Spoor
+     */
+    public static class Decoder
+    {
+        private final SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ"); /** Parses the time field. */
+
+        /**
+         * Decodes a datagram's payload.
+         *
+         * @param data   The datagram's buffer.
+         * @param offset The offset of the payload in the buffer.
+         * @param length The length of the payload.
+         * @param addr   The address from which the datagram was received.
+         * @param recvMillis The time at which the datagram was received.
+         * @return The decoded fix, or null if the payload isn't a well-formed fix.
+         *
+         * @author Shane Spoor
+         */
+        public Fix decode(byte[] data, int offset, int length, InetAddress addr, long recvMillis)
+        {
+            String text   = new String(data, offset, length).trim();
+            int    first  = text.indexOf(' ');
+            int    second = first < 0 ? -1 : text.indexOf(' ', first + 1);
+            if(second < 0)
+                return null;
+
+            try
+            {
+                double lat  = Double.parseDouble(text.substring(0, first));
+                double lon  = Double.parseDouble(text.substring(first + 1, second));
+                String time = text.substring(second + 1).trim();
+                long   timeMillis;
+                try
+                {
+                    timeMillis = df.parse(time).getTime();
+                } catch (ParseException e) {
+                    timeMillis = recvMillis;
+                }
+                return new Fix(addr.getHostAddress(), keyFor(addr), lat, lon, time, timeMillis, recvMillis);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package ca.bcit.A00852406;
+
+/**
+ * Receives the fixes decoded by the server.
+ *
+ * Listeners are called on the server's receiving thread, once per fix, in the order the fixes
+ * arrived. They must not block, since every other listener and the socket itself wait on them.
+ *
+ * @author Shane Spoor
+ */
+public interface FixListener
+{
+    /**
+     * Called when the server has decoded a fix.
+     *
+     * @param fix The decoded fix.
+     */
+    void onFix(Fix fix);
+}
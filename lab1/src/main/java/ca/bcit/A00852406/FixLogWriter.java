@@ -0,0 +1,61 @@
+package ca.bcit.A00852406;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Records fixes to a binary fix log so that a run can be replayed later (see {@link RecordedTrack}).
+ *
+ * A fix log is the int {@link #MAGIC} followed by one 24-byte record per fix: the time in
+ * milliseconds since the epoch as a long, then the latitude and longitude as doubles, all
+ * big-endian. There is no footer, so a log cut short by a crash is still readable up to its last
+ * whole record.
+ *
+ * @author Shane Spoor
+ */
+public class FixLogWriter
+{
+    public static final int MAGIC = 0x46584C31; /** Identifies a fix log ("FXL1"). */
+
+    private final DataOutputStream out; /** The log being written. */
+
+    /**
+     * Creates a fix log, replacing any existing file.
+     *
+     * @param file The file to write.
+     * @throws IOException If the file can't be created.
+     */
+    public FixLogWriter(File file) throws IOException
+    {
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        out.writeInt(MAGIC);
+    }
+
+    /**
+     * Appends a fix.
+     *
+     * @param time The time of the fix in milliseconds since the epoch.
+     * @param lat  The latitude in degrees.
+     * @param lon  The longitude in degrees.
+     * @throws IOException If the fix can't be written.
+     */
+    public void append(long time, double lat, double lon) throws IOException
+    {
+        out.writeLong(time);
+        out.writeDouble(lat);
+        out.writeDouble(lon);
+    }
+
+    /**
+     * Writes out any buffered fixes and closes the log.
+     *
+     * @throws IOException If the log can't be written.
+     */
+    public void close() throws IOException
+    {
+        out.close();
+    }
+}
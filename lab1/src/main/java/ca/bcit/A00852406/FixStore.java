@@ -0,0 +1,437 @@
+package ca.bcit.A00852406;
+
+import android.util.SparseIntArray;
+
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Holds the fixes received by the server in a compact, column-oriented form.
+ *
+ * Fixes are appended to fixed-size chunks of primitive arrays in arrival order, and every fix also
+ * records the position of the next fix from the same client, so a single client's track can be
+ * walked without looking at anyone else's fixes. Once the store reaches its capacity the oldest chunk
+ * is dropped; the store remembers the time span of the fixes it has dropped so that readers can tell
+ * when a range they ask for is incomplete. At the default capacity the store holds about a day of
+ * fixes from six clients sending every second.
+ *
+ * Fixes are identified by a sequence number that counts every fix ever appended; it's a long so that
+ * a server left running can't wrap it. Only the receiving thread appends; any thread may read.
+ * Readers take a {@link #snapshot} under the lock and can then walk it without holding the lock,
+ * since the filled part of a chunk never changes.
+ *
+ * @author Shane Spoor
+ */
+public class FixStore
+{
+    public  static final int    DEFAULT_CAPACITY    = 1 << 19; /** The default maximum number of fixes kept. */
+    private static final int    CHUNK_SHIFT         = 12;      /** log2 of the number of fixes per chunk. */
+    private static final int    CHUNK_SIZE          = 1 << CHUNK_SHIFT;
+    private static final int    CHUNK_MASK          = CHUNK_SIZE - 1;
+
+    /**
+     * A block of consecutive fixes.
+     */
+    private static final class Chunk
+    {
+        final int[]     client  = new int[CHUNK_SIZE];    /** The client index of each fix. */
+        final double[]  lat     = new double[CHUNK_SIZE]; /** The latitude of each fix. */
+        final double[]  lon     = new double[CHUNK_SIZE]; /** The longitude of each fix. */
+        final long[]    time    = new long[CHUNK_SIZE];   /** The time each fix was taken. */
+        final long[]    recv    = new long[CHUNK_SIZE];   /** The time each fix was received. */
+        final long[]    next    = new long[CHUNK_SIZE];   /** The sequence number of the client's next fix, or -1. */
+        long            minTime = Long.MAX_VALUE;         /** The earliest fix time in the chunk. */
+        long            maxTime = Long.MIN_VALUE;         /** The latest fix time in the chunk. */
+    }
+
+    /**
+     * A consistent, read-only view of the store.
+     *
+     * Fixes appended after the snapshot was taken are invisible to it. Reading a fix that has since
+     * been dropped from the store still works, because the snapshot keeps its chunk alive.
+     */
+    public static final class Snapshot
+    {
+        private final Chunk[]   chunks;     /** The chunks, oldest first. */
+        private final long      base;       /** The sequence number of the first fix in chunks[0]. */
+        private final long      end;        /** One past the sequence number of the last fix. */
+        private final String[]  addrs;      /** The address of each client index. */
+        private final int[]     keys;       /** The key of each client index. */
+        private final long[]    first;      /** The sequence number of each client's first fix, or -1. */
+        private final long      droppedMin; /** The earliest time of any dropped fix. */
+        private final long      droppedMax; /** The latest time of any dropped fix. */
+
+        private Snapshot(Chunk[] chunks, long base, long end, String[] addrs, int[] keys, long[] first,
+                         long droppedMin, long droppedMax)
+        {
+            this.chunks     = chunks;
+            this.base       = base;
+            this.end        = end;
+            this.addrs      = addrs;
+            this.keys       = keys;
+            this.first      = first;
+            this.droppedMin = droppedMin;
+            this.droppedMax = droppedMax;
+        }
+
+        /** @return The sequence number of the oldest fix in the snapshot. */
+        public long start()         { return base; }
+        /** @return One past the sequence number of the newest fix in the snapshot. */
+        public long end()           { return end; }
+        /** @return The number of clients that have ever sent a fix. */
+        public int clientCount()    { return addrs.length; }
+
+        /**
+         * @param client A client index.
+         * @return The client's address.
+         */
+        public String clientAddr(int client)    { return addrs[client]; }
+
+        /**
+         * @param client A client index.
+         * @return The client's key (see {@link Fix#keyFor}).
+         */
+        public int clientKey(int client)        { return keys[client]; }
+
+        /**
+         * Returns the sequence number of a client's oldest fix still in the snapshot.
+         *
+         * @param client A client index.
+         * @return The sequence number, or -1 if the client has no fixes in the snapshot.
+         */
+        public long firstOf(int client)
+        {
+            long seq = first[client];
+            return seq < base || seq >= end ? -1 : seq;
+        }
+
+        /**
+         * Returns the sequence number of the client's next fix after <i>seq</i>.
+         *
+         * @param seq The sequence number of one of the client's fixes.
+         * @return The sequence number, or -1 if <i>seq</i> is the client's last fix in the snapshot.
+         */
+        public long nextOf(long seq)
+        {
+            long n = chunk(seq).next[(int)seq & CHUNK_MASK];
+            return n < 0 || n >= end ? -1 : n;
+        }
+
+        /** @param seq A sequence number. @return The client index of the fix. */
+        public int client(long seq)     { return chunk(seq).client[(int)seq & CHUNK_MASK]; }
+        /** @param seq A sequence number. @return The latitude of the fix. */
+        public double lat(long seq)     { return chunk(seq).lat[(int)seq & CHUNK_MASK]; }
+        /** @param seq A sequence number. @return The longitude of the fix. */
+        public double lon(long seq)     { return chunk(seq).lon[(int)seq & CHUNK_MASK]; }
+        /** @param seq A sequence number. @return The time the fix was taken. */
+        public long time(long seq)      { return chunk(seq).time[(int)seq & CHUNK_MASK]; }
+        /** @param seq A sequence number. @return The time the fix was received. */
+        public long recvTime(long seq)  { return chunk(seq).recv[(int)seq & CHUNK_MASK]; }
+
+        /**
+         * Returns whether any fix in the chunk holding <i>seq</i> falls within a time range. Used to
+         * skip whole chunks when scanning by time.
+         *
+         * @param seq  A sequence number.
+         * @param from The start of the range, inclusive.
+         * @param to   The end of the range, inclusive.
+         * @return False if no fix in the chunk can fall within the range.
+         */
+        public boolean chunkOverlaps(long seq, long from, long to)
+        {
+            Chunk c = chunk(seq);
+            return c.maxTime >= from && c.minTime <= to;
+        }
+
+        /**
+         * Returns whether any fix dropped from the store to stay within its capacity may have fallen
+         * within a time range, i.e. whether the snapshot can be missing fixes from that range.
+         *
+         * @param from The start of the range, inclusive.
+         * @param to   The end of the range, inclusive.
+         * @return False if no dropped fix fell within the range.
+         */
+        public boolean droppedOverlaps(long from, long to)
+        {
+            return droppedMax >= from && droppedMin <= to;
+        }
+
+        /**
+         * Returns the first sequence number of the chunk after the one holding <i>seq</i>.
+         *
+         * @param seq A sequence number.
+         * @return The first sequence number of the next chunk.
+         */
+        public static long nextChunk(long seq)
+        {
+            return (seq & ~CHUNK_MASK) + CHUNK_SIZE;
+        }
+
+        /**
+         * Rebuilds the fix with the given sequence number. The time string is regenerated in UTC.
+         *
+         * @param seq A sequence number.
+         * @return The fix.
+         */
+        public Fix fix(long seq)
+        {
+            Chunk c = chunk(seq);
+            int   i = (int)seq & CHUNK_MASK;
+            int   k = c.client[i];
+            StringBuilder time = new StringBuilder(24);
+            Fix.appendIsoTime(time, c.time[i], false);
+            return new Fix(addrs[k], keys[k], c.lat[i], c.lon[i], time.toString(), c.time[i], c.recv[i]);
+        }
+
+        private Chunk chunk(long seq)
+        {
+            return chunks[(int)((seq - base) >> CHUNK_SHIFT)];
+        }
+    }
+
+    private final int               capacity;                               /** The maximum number of fixes kept. */
+    private final ArrayList<Chunk>  chunks      = new ArrayList<Chunk>();   /** The chunks, oldest first. */
+    private final SparseIntArray    clientIdx   = new SparseIntArray();     /** Maps each client key to its client index. */
+    private String[]                addrs       = new String[16];           /** The address of each client index. */
+    private int[]                   keys        = new int[16];              /** The key of each client index. */
+    private long[]                  first       = new long[16];             /** The sequence number of each client's first fix. */
+    private long[]                  last        = new long[16];             /** The sequence number of each client's last fix. */
+    private int                     clients;                                /** The number of client indices in use. */
+    private long                    base;                                   /** The sequence number of the first fix in chunks[0]. */
+    private long                    end;                                    /** One past the sequence number of the last fix. */
+    private long                    droppedMin  = Long.MAX_VALUE;           /** The earliest time of any dropped fix. */
+    private long                    droppedMax  = Long.MIN_VALUE;           /** The latest time of any dropped fix. */
+
+    /**
+     * Creates a store that keeps up to {@link #DEFAULT_CAPACITY} fixes.
+     */
+    public FixStore()
+    {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates a store.
+     *
+     * @param capacity The maximum number of fixes kept; rounded up to a whole number of chunks.
+     */
+    public FixStore(int capacity)
+    {
+        this.capacity = Math.max(CHUNK_SIZE, (capacity + CHUNK_MASK) & ~CHUNK_MASK);
+    }
+
+    /**
+     * Appends a fix, dropping the oldest chunk if the store is full.
+     *
+     * @param fix The fix to append.
+     */
+    public synchronized void add(Fix fix)
+    {
+        if((end & CHUNK_MASK) == 0)
+        {
+            if(end - base >= capacity)
+                dropOldest();
+            chunks.add(new Chunk());
+        }
+
+        int k = clientIdx.get(fix.clientKey, -1);
+        if(k < 0)
+            k = addClient(fix.clientKey, fix.clientAddr);
+
+        Chunk c = chunks.get(chunks.size() - 1);
+        int   i = (int)end & CHUNK_MASK;
+        c.client[i] = k;
+        c.lat[i]    = fix.lat;
+        c.lon[i]    = fix.lon;
+        c.time[i]   = fix.timeMillis;
+        c.recv[i]   = fix.recvMillis;
+        c.next[i]   = -1;
+        c.minTime   = Math.min(c.minTime, fix.timeMillis);
+        c.maxTime   = Math.max(c.maxTime, fix.timeMillis);
+
+        if(last[k] >= base)
+            chunkOf(last[k]).next[(int)last[k] & CHUNK_MASK] = end;
+        else
+            first[k] = end;
+        last[k] = end;
+        end++;
+    }
+
+    /**
+     * Removes every fix and client.
+     */
+    public synchronized void clear()
+    {
+        chunks.clear();
+        clientIdx.clear();
+        Arrays.fill(addrs, null);
+        clients     = 0;
+        base        = 0;
+        end         = 0;
+        droppedMin  = Long.MAX_VALUE;
+        droppedMax  = Long.MIN_VALUE;
+    }
+
+    /**
+     * Returns the number of fixes held.
+     *
+     * @return The number of fixes held.
+     */
+    public synchronized int size()
+    {
+        return (int)(end - base);
+    }
+
+    /**
+     * Returns a consistent view of the store's current contents.
+     *
+     * @return The snapshot.
+     */
+    public synchronized Snapshot snapshot()
+    {
+        return new Snapshot(chunks.toArray(new Chunk[chunks.size()]), base, end,
+                            Arrays.copyOf(addrs, clients), Arrays.copyOf(keys, clients),
+                            Arrays.copyOf(first, clients), droppedMin, droppedMax);
+    }
+
+    /**
+     * Replaces the store's contents with fixes read in bulk, e.g. from a snapshot file.
+     *
+     * The columns are copied straight into the chunks and the per-client links are rebuilt in one
+     * pass, so no Fix objects are created. If there are more fixes than the store holds, only the
+     * newest are kept.
+     *
+     * @param addrs  The address of each client index.
+     * @param keys   The key of each client index.
+     * @param client The client index of each fix, oldest first.
+     * @param lat    The latitude of each fix.
+     * @param lon    The longitude of each fix.
+     * @param time   The time each fix was taken.
+     * @param recv   The time each fix was received.
+     * @throws IllegalArgumentException If a client key is repeated or a fix has no client; the store
+     *                                  is left empty.
+     */
+    public synchronized void restore(String[] addrs, int[] keys, IntBuffer client, DoubleBuffer lat,
+                                     DoubleBuffer lon, LongBuffer time, LongBuffer recv)
+    {
+        clear();
+        try
+        {
+            restoreColumns(addrs, keys, client, lat, lon, time, recv);
+        } catch (IllegalArgumentException e) {
+            clear();
+            throw e;
+        }
+    }
+
+    /**
+     * Does the work of {@link #restore} on an empty store.
+     */
+    private void restoreColumns(String[] addrs, int[] keys, IntBuffer client, DoubleBuffer lat,
+                                DoubleBuffer lon, LongBuffer time, LongBuffer recv)
+    {
+        for(int k = 0; k < addrs.length; k++)
+        {
+            if(clientIdx.get(keys[k], -1) >= 0)
+                throw new IllegalArgumentException("Duplicate client key");
+            addClient(keys[k], addrs[k]);
+        }
+
+        int n    = client.remaining();
+        int skip = Math.max(0, n - capacity);
+        client.position(client.position() + skip);
+        lat.position(lat.position() + skip);
+        lon.position(lon.position() + skip);
+        time.position(time.position() + skip);
+        recv.position(recv.position() + skip);
+        n -= skip;
+        for(int i = 0; i < skip; i++)
+        {
+            long t = time.get(time.position() - skip + i);
+            droppedMin = Math.min(droppedMin, t);
+            droppedMax = Math.max(droppedMax, t);
+        }
+
+        while(end < n)
+        {
+            Chunk c   = new Chunk();
+            int   len = (int)Math.min(CHUNK_SIZE, n - end);
+            client.get(c.client, 0, len);
+            lat.get(c.lat, 0, len);
+            lon.get(c.lon, 0, len);
+            time.get(c.time, 0, len);
+            recv.get(c.recv, 0, len);
+            for(int i = 0; i < len; i++)
+            {
+                int k = c.client[i];
+                if(k < 0 || k >= clients)
+                    throw new IllegalArgumentException("Bad client index");
+                c.next[i] = -1;
+                c.minTime = Math.min(c.minTime, c.time[i]);
+                c.maxTime = Math.max(c.maxTime, c.time[i]);
+                if(last[k] >= 0)
+                    chunkOf(last[k], c).next[(int)last[k] & CHUNK_MASK] = end;
+                else
+                    first[k] = end;
+                last[k] = end++;
+            }
+            chunks.add(c);
+        }
+    }
+
+    /**
+     * Assigns the next client index to a client.
+     */
+    private int addClient(int key, String addr)
+    {
+        if(clients == addrs.length)
+        {
+            addrs   = Arrays.copyOf(addrs, clients * 2);
+            keys    = Arrays.copyOf(keys, clients * 2);
+            first   = Arrays.copyOf(first, clients * 2);
+            last    = Arrays.copyOf(last, clients * 2);
+        }
+        int k = clients++;
+        clientIdx.put(key, k);
+        addrs[k]    = addr;
+        keys[k]     = key;
+        first[k]    = -1;
+        last[k]     = -1;
+        return k;
+    }
+
+    /**
+     * Drops the oldest chunk, moving each affected client's first fix to its next surviving one.
+     */
+    private void dropOldest()
+    {
+        Chunk c = chunks.remove(0);
+        for(int i = 0; i < CHUNK_SIZE; i++)
+        {
+            int k = c.client[i];
+            if(first[k] == base + i)
+                first[k] = c.next[i];
+        }
+        droppedMin = Math.min(droppedMin, c.minTime);
+        droppedMax = Math.max(droppedMax, c.maxTime);
+        base += CHUNK_SIZE;
+    }
+
+    private Chunk chunkOf(long seq)
+    {
+        return chunks.get((int)((seq - base) >> CHUNK_SHIFT));
+    }
+
+    /**
+     * Returns the chunk holding <i>seq</i>, which is either a stored chunk or <i>pending</i>, the chunk
+     * being filled by {@link #restore} that hasn't been added yet.
+     */
+    private Chunk chunkOf(long seq, Chunk pending)
+    {
+        int i = (int)((seq - base) >> CHUNK_SHIFT);
+        return i == chunks.size() ? pending : chunks.get(i);
+    }
+}
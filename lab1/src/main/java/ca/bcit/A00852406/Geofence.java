@@ -0,0 +1,103 @@
+package ca.bcit.A00852406;
+
+import ca.bcit.A00852406.util.GeoMath;
+
+/**
+ * A named area, either a circle or a polygon, whose boundary crossings are reported by the
+ * {@link GeofenceEngine}.
+ *
+ * Polygons are given as a ring of vertices (the last vertex joins back to the first). Neither kind
+ * of fence may cross the antimeridian.
+ *
+ * @author Shane Spoor
+ */
+public class Geofence
+{
+    public final String id;                             /** The fence's name. */
+    public final double minLat, minLon, maxLat, maxLon; /** The fence's bounding box. */
+
+    private final double   centreLat, centreLon, radius; /** A circle's centre and radius in metres. */
+    private final double[] lats, lons;                   /** A polygon's vertices, or null for a circle. */
+
+    private Geofence(String id, double centreLat, double centreLon, double radius, double[] lats, double[] lons,
+                     double minLat, double minLon, double maxLat, double maxLon)
+    {
+        this.id         = id;
+        this.centreLat  = centreLat;
+        this.centreLon  = centreLon;
+        this.radius     = radius;
+        this.lats       = lats;
+        this.lons       = lons;
+        this.minLat     = minLat;
+        this.minLon     = minLon;
+        this.maxLat     = maxLat;
+        this.maxLon     = maxLon;
+    }
+
+    /**
+     * Creates a circular fence.
+     *
+     * @param id     The fence's name.
+     * @param lat    The latitude of the centre in degrees.
+     * @param lon    The longitude of the centre in degrees.
+     * @param radius The radius in metres.
+     * @return The fence.
+     */
+    public static Geofence circle(String id, double lat, double lon, double radius)
+    {
+        double dLat = radius / GeoMath.METRES_PER_DEG;
+        double dLon = GeoMath.lonSpan(radius, Math.abs(lat) + dLat > 90 ? 90 : Math.abs(lat) + dLat);
+        return new Geofence(id, lat, lon, radius, null, null,
+                            Math.max(-90, lat - dLat), lon - dLon, Math.min(90, lat + dLat), lon + dLon);
+    }
+
+    /**
+     * Creates a polygonal fence.
+     *
+     * @param id   The fence's name.
+     * @param lats The latitudes of the vertices in degrees.
+     * @param lons The longitudes of the vertices in degrees.
+     * @return The fence.
+     * @throws IllegalArgumentException If there are fewer than three vertices or the arrays differ in length.
+     */
+    public static Geofence polygon(String id, double[] lats, double[] lons)
+    {
+        if(lats.length < 3 || lats.length != lons.length)
+            throw new IllegalArgumentException("A polygon needs at least three vertices");
+
+        double minLat = 90, minLon = 180, maxLat = -90, maxLon = -180;
+        for(int i = 0; i < lats.length; i++)
+        {
+            minLat = Math.min(minLat, lats[i]);
+            maxLat = Math.max(maxLat, lats[i]);
+            minLon = Math.min(minLon, lons[i]);
+            maxLon = Math.max(maxLon, lons[i]);
+        }
+        return new Geofence(id, 0, 0, 0, lats.clone(), lons.clone(), minLat, minLon, maxLat, maxLon);
+    }
+
+    /**
+     * Returns whether a point lies inside the fence.
+     *
+     * The caller is expected to have checked the bounding box already.
+     *
+     * @param lat The point's latitude in degrees.
+     * @param lon The point's longitude in degrees.
+     * @return True if the point is inside.
+     */
+    public boolean contains(double lat, double lon)
+    {
+        if(lats == null)
+            return GeoMath.fastDistance(centreLat, centreLon, lat, lon) <= radius;
+
+        // Even-odd ray casting towards increasing longitude.
+        boolean inside = false;
+        for(int i = 0, j = lats.length - 1; i < lats.length; j = i++)
+        {
+            if((lats[i] > lat) != (lats[j] > lat)
+                    && lon < (lons[j] - lons[i]) * (lat - lats[i]) / (lats[j] - lats[i]) + lons[i])
+                inside = !inside;
+        }
+        return inside;
+    }
+}
@@ -0,0 +1,242 @@
+package ca.bcit.A00852406;
+
+import android.util.SparseArray;
+
+import ca.bcit.A00852406.util.RTree;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reports when clients cross geofence boundaries.
+ *
+ * The fences are indexed by bounding box in an R-tree, so each fix is tested exactly only against
+ * the few fences whose boxes contain it, and the cost per fix grows with the log of the number of
+ * fences. For each client the engine remembers which fences it was inside after its last fix, and
+ * only reports the fences it has since entered or left. Clients outside every fence aren't
+ * remembered, so the state grows with the number of clients inside fences, not with every client
+ * ever seen.
+ *
+ * Fixes must be fed from a single thread (the server's receiving thread); listeners are called on
+ * that thread. The fence set may be replaced from any thread, which resets every client's state.
+ *
+ * @author Shane Spoor
+ */
+public class GeofenceEngine implements FixListener
+{
+    private static final int[] NONE = new int[0]; /** The state of a client that's inside no fence. */
+
+    /**
+     * Receives boundary crossings.
+     */
+    public interface Listener
+    {
+        /**
+         * Called when a client's fix is inside a fence its previous fix was outside.
+         *
+         * @param fix   The fix.
+         * @param fence The fence entered.
+         */
+        void onEnter(Fix fix, Geofence fence);
+
+        /**
+         * Called when a client's fix is outside a fence its previous fix was inside.
+         *
+         * @param fix   The fix.
+         * @param fence The fence left.
+         */
+        void onExit(Fix fix, Geofence fence);
+    }
+
+    /**
+     * A set of fences, its index, and the clients' state relative to it.
+     */
+    private static final class FenceSet
+    {
+        final Geofence[]        fences;                               /** The fences, by index. */
+        final RTree<Integer>    index  = new RTree<Integer>();        /** The fence indices keyed by bounding box. */
+        final SparseArray<int[]> inside = new SparseArray<int[]>();   /** The sorted indices of the fences each client is inside, if any. */
+
+        FenceSet(Geofence[] fences)
+        {
+            this.fences = fences;
+            for(int i = 0; i < fences.length; i++)
+                index.insert(fences[i].minLon, fences[i].minLat, fences[i].maxLon, fences[i].maxLat, i);
+        }
+    }
+
+    private volatile FenceSet   set      = new FenceSet(new Geofence[0]); /** The current fences. */
+    private final Listener      listener;                                 /** Receives the crossings. */
+    private int[]               found    = new int[16];                   /** Scratch space for the fences containing a fix. */
+    private int                 foundCount;                               /** The number of entries in found. */
+    private Fix                 current;                                  /** The fix being tested. */
+    private FenceSet            currentSet;                               /** The fence set the fix is being tested against. */
+
+    /**
+     * Tests each candidate fence exactly and collects the ones containing the current fix.
+     */
+    private final RTree.Visitor<Integer> collector = new RTree.Visitor<Integer>()
+    {
+        public void visit(Integer fence)
+        {
+            if(!currentSet.fences[fence].contains(current.lat, current.lon))
+                return;
+            if(foundCount == found.length)
+                found = Arrays.copyOf(found, foundCount * 2);
+            found[foundCount++] = fence;
+        }
+    };
+
+    /**
+     * Creates an engine with no fences.
+     *
+     * @param listener Receives the crossings.
+     */
+    public GeofenceEngine(Listener listener)
+    {
+        this.listener = listener;
+    }
+
+    /**
+     * Replaces the fences. Every client is considered outside every new fence until its next fix.
+     *
+     * @param fences The new fences.
+     */
+    public void setFences(List<Geofence> fences)
+    {
+        set = new FenceSet(fences.toArray(new Geofence[fences.size()]));
+    }
+
+    /**
+     * Returns the number of fences.
+     *
+     * @return The number of fences.
+     */
+    public int getFenceCount()
+    {
+        return set.fences.length;
+    }
+
+    /**
+     * Finds the fences containing the fix and reports the differences from the client's previous fix.
+     *
+     * @param fix The fix.
+     *
+     * @author Shane Spoor
+     */
+    public void onFix(Fix fix)
+    {
+        FenceSet s = set;
+        if(s.fences.length == 0)
+            return;
+
+        current     = fix;
+        currentSet  = s;
+        foundCount  = 0;
+        s.index.search(fix.lon, fix.lat, collector);
+        current     = null;
+        currentSet  = null;
+        Arrays.sort(found, 0, foundCount);
+
+        int[] before = s.inside.get(fix.clientKey, NONE);
+        if(foundCount == before.length && equalsPrefix(before, found, foundCount))
+            return;
+
+        // Merge the two sorted lists, reporting the fences that appear in only one of them.
+        int i = 0, j = 0;
+        while(i < before.length || j < foundCount)
+        {
+            if(j == foundCount || (i < before.length && before[i] < found[j]))
+                listener.onExit(fix, s.fences[before[i++]]);
+            else if(i == before.length || found[j] < before[i])
+                listener.onEnter(fix, s.fences[found[j++]]);
+            else
+            {
+                i++;
+                j++;
+            }
+        }
+        if(foundCount == 0)
+            s.inside.delete(fix.clientKey);
+        else
+            s.inside.put(fix.clientKey, Arrays.copyOf(found, foundCount));
+    }
+
+    /**
+     * Reads a fence set from a text file.
+     *
+     * The file is read as UTF-8. Each line describes one fence; blank lines and lines starting with
+     * '#' are ignored:
+     * <pre>
+     * circle  <i>id lat lon radiusMetres</i>
+     * polygon <i>id lat1 lon1 lat2 lon2 lat3 lon3 ...</i>
+     * </pre>
+     * Fence ids may not contain whitespace.
+     *
+     * @param file The file to read.
+     * @return The fences, in file order.
+     * @throws IOException If the file can't be read or a line is malformed.
+     *
+     * @author Shane Spoor
+     */
+    public static ArrayList<Geofence> load(File file) throws IOException
+    {
+        ArrayList<Geofence> fences = new ArrayList<Geofence>();
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try
+        {
+            String line;
+            int    lineNo = 0;
+            while((line = in.readLine()) != null)
+            {
+                lineNo++;
+                line = line.trim();
+                if(line.length() == 0 || line.startsWith("#"))
+                    continue;
+
+                String[] parts = line.split("\\s+");
+                try
+                {
+                    if(parts[0].equals("circle") && parts.length == 5)
+                        fences.add(Geofence.circle(parts[1], Double.parseDouble(parts[2]),
+                                                   Double.parseDouble(parts[3]), Double.parseDouble(parts[4])));
+                    else if(parts[0].equals("polygon") && parts.length % 2 == 0)
+                    {
+                        int      n    = (parts.length - 2) / 2;
+                        double[] lats = new double[n], lons = new double[n];
+                        for(int k = 0; k < n; k++)
+                        {
+                            lats[k] = Double.parseDouble(parts[2 + 2 * k]);
+                            lons[k] = Double.parseDouble(parts[3 + 2 * k]);
+                        }
+                        fences.add(Geofence.polygon(parts[1], lats, lons));
+                    }
+                    else
+                        throw new IllegalArgumentException("Unrecognised fence");
+                } catch (IllegalArgumentException e) {
+                    throw new IOException(file.getName() + " line " + lineNo + ": " + e.getMessage());
+                }
+            }
+        } finally {
+            in.close();
+        }
+        return fences;
+    }
+
+    /**
+     * Returns whether the first <i>n</i> entries of two arrays are equal.
+     */
+    private static boolean equalsPrefix(int[] a, int[] b, int n)
+    {
+        for(int i = 0; i < n; i++)
+            if(a[i] != b[i])
+                return false;
+        return true;
+    }
+}
@@ -0,0 +1,156 @@
+package ca.bcit.A00852406;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+
+import ca.bcit.A00852406.util.LongObjectMap;
+import ca.bcit.A00852406.util.Tracer;
+
+import com.google.android.gms.maps.model.Tile;
+import com.google.android.gms.maps.model.TileProvider;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Draws the counts in a {@link DensityGrid} as heatmap tiles for a map's TileOverlay.
+ *
+ * The map only asks for the tiles it's showing, so the cost of a redraw depends on the number of
+ * visible tiles rather than on the number of fixes. Rendered tiles are cached along with the grid
+ * tile's version; when the overlay's cache is cleared to pick up new fixes, tiles whose counts
+ * haven't changed are served from that cache and only the dirty ones are drawn again.
+ *
+ * Colours are on a fixed logarithmic scale, so adding fixes to one tile never changes another. Zoom
+ * levels deeper than the grid's are drawn by enlarging the deepest level.
+ *
+ * @author Shane Spoor
+ */
+public class HeatmapTileProvider implements TileProvider
+{
+    private static final int    TILE_SIZE   = 256;  /** The width and height of a tile in pixels. */
+    private static final int    PX_SHIFT    = 3;    /** log2(TILE_SIZE / DensityGrid.CELLS). */
+    private static final int    SATURATION  = 1000; /** The count at which a cell reaches the hottest colour. */
+    private static final int    MAX_CACHED  = 256;  /** The most rendered tiles kept. */
+
+    /**
+     * A tile as last drawn.
+     */
+    private static final class Rendered
+    {
+        final int   version;    /** The version of the grid tile it was drawn from. */
+        final Tile  tile;       /** The drawn tile. */
+
+        Rendered(int version, Tile tile)
+        {
+            this.version    = version;
+            this.tile       = tile;
+        }
+    }
+
+    private final DensityGrid               grid;                                           /** The counts to draw. */
+    private final LongObjectMap<Rendered>   cache   = new LongObjectMap<Rendered>();        /** Drawn tiles, keyed by DensityGrid.key. */
+    private final int[]                     palette = buildPalette();                       /** The colour for each intensity from 0 to 255. */
+
+    /**
+     * Creates a provider.
+     *
+     * @param grid The counts to draw.
+     */
+    public HeatmapTileProvider(DensityGrid grid)
+    {
+        this.grid = grid;
+    }
+
+    /**
+     * Returns the tile at the given coordinates, drawing it if its counts have changed since it was
+     * last drawn. Called by the map on its own threads.
+     *
+     * @param x    The tile's column.
+     * @param y    The tile's row.
+     * @param zoom The zoom level.
+     * @return The tile, or NO_TILE if no fix has landed in it.
+     */
+    public Tile getTile(int x, int y, int zoom)
+    {
+        // Deeper zoom levels are drawn from the enclosing tile on the deepest level.
+        int  depth  = Math.max(0, zoom - DensityGrid.MAX_LEVEL);
+        int  level  = zoom - depth;
+        int  srcX   = x >> depth, srcY = y >> depth;
+        long k      = DensityGrid.key(zoom, x, y);
+
+        int version = grid.tileVersion(level, srcX, srcY);
+        if(version < 0)
+            return NO_TILE;
+        synchronized(cache)
+        {
+            Rendered r = cache.get(k);
+            if(r != null && r.version == version)
+                return r.tile;
+        }
+
+        int[] counts = new int[DensityGrid.CELLS * DensityGrid.CELLS];
+        version = grid.copyTile(level, srcX, srcY, counts);
+        if(version < 0)
+            return NO_TILE;
+        long trace = Tracer.begin("server.heatmapTile");
+        Tile tile  = draw(counts, x & ((1 << depth) - 1), y & ((1 << depth) - 1), depth);
+        Tracer.end(trace);
+
+        synchronized(cache)
+        {
+            if(cache.size() >= MAX_CACHED)
+                cache.clear();
+            cache.put(k, new Rendered(version, tile));
+        }
+        return tile;
+    }
+
+    /**
+     * Draws a tile from a grid tile's counts.
+     *
+     * @param counts The grid tile's counts.
+     * @param offX   The column of the tile within the grid tile, when enlarging.
+     * @param offY   The row of the tile within the grid tile, when enlarging.
+     * @param depth  How many levels deeper than the grid tile the tile is.
+     * @return The drawn tile.
+     */
+    private Tile draw(int[] counts, int offX, int offY, int depth)
+    {
+        int[] cellColour = new int[counts.length];
+        double scale = 255 / Math.log1p(SATURATION);
+        for(int i = 0; i < counts.length; i++)
+            cellColour[i] = counts[i] == 0 ? Color.TRANSPARENT : palette[(int)Math.min(255, Math.log1p(counts[i]) * scale)];
+
+        int[] pixels = new int[TILE_SIZE * TILE_SIZE];
+        int   shift  = PX_SHIFT + depth;
+        for(int py = 0; py < TILE_SIZE; py++)
+        {
+            int cy  = (offY * TILE_SIZE + py) >> shift;
+            int row = cy * DensityGrid.CELLS;
+            for(int px = 0; px < TILE_SIZE; px++)
+                pixels[py * TILE_SIZE + px] = cellColour[row + ((offX * TILE_SIZE + px) >> shift)];
+        }
+
+        Bitmap bitmap = Bitmap.createBitmap(pixels, TILE_SIZE, TILE_SIZE, Bitmap.Config.ARGB_8888);
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        bitmap.compress(Bitmap.CompressFormat.PNG, 100, png);
+        bitmap.recycle();
+        return new Tile(TILE_SIZE, TILE_SIZE, png.toByteArray());
+    }
+
+    /**
+     * Builds a ramp from translucent blue through green and yellow to opaque red.
+     */
+    private static int[] buildPalette()
+    {
+        int[] palette = new int[256];
+        for(int i = 0; i < 256; i++)
+        {
+            double t = i / 255.0;
+            int    r = (int)(255 * Math.min(1, Math.max(0, 2 * t - 0.5)));
+            int    g = (int)(255 * Math.min(1, Math.max(0, t < 0.75 ? 2 * t : 4 * (1 - t))));
+            int    b = (int)(255 * Math.min(1, Math.max(0, 1 - 2 * t)));
+            palette[i] = Color.argb(96 + (int)(159 * t), r, g, b);
+        }
+        return palette;
+    }
+}
@@ -0,0 +1,438 @@
+package ca.bcit.A00852406;
+
+import android.util.SparseIntArray;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Limits the rate at which each client's datagrams are accepted by the server.
+ *
+ * Every client gets a token bucket that refills at {@link #setRate rate} tokens per second up to
+ * {@link #setRate burst} tokens, and each accepted datagram costs one token. What happens to a
+ * datagram that arrives when its client's bucket is empty depends on the policy:
+ * <ul>
+ *     <li>{@link #POLICY_DROP_NEWEST}: the datagram is dropped.</li>
+ *     <li>{@link #POLICY_KEEP_LATEST}: the datagram is held, replacing any datagram already held for
+ *         that client, and released by {@link #drain} once a token is available.</li>
+ *     <li>{@link #POLICY_DOWNSAMPLE}: one in every <i>n</i> excess datagrams is let through anyway.</li>
+ * </ul>
+ * While the server is under global back-pressure every bucket refills at a fraction of the
+ * configured rate.
+ *
+ * The per-client state lives in parallel primitive arrays indexed through a SparseIntArray, so a
+ * check touches no objects other than the arrays themselves. At most {@link #MAX_CLIENTS} clients are
+ * tracked; the clients are also kept in a list ordered by when they were last seen, and a new client
+ * takes over the slot of the least recently seen one once the table is full. Source addresses are
+ * trivially spoofed, so a table that only ever grew would eventually turn every new client away. A
+ * client that's forgotten starts again with a full bucket if it comes back. All methods are
+ * synchronized; the receiving thread is the only frequent caller.
+ *
+ * @author Shane Spoor
+ */
+public class IngestLimiter
+{
+    public static final int POLICY_DROP_NEWEST  = 0; /** Drop datagrams that exceed the limit. */
+    public static final int POLICY_KEEP_LATEST  = 1; /** Hold the newest excess datagram from each client. */
+    public static final int POLICY_DOWNSAMPLE   = 2; /** Let one in every n excess datagrams through. */
+
+    public static final int ACCEPT              = 0; /** The datagram should be processed now. */
+    public static final int REJECT              = 1; /** The datagram should be discarded. */
+    public static final int HOLD                = 2; /** The datagram should be decoded and passed to {@link #hold}. */
+
+    public static final double DEFAULT_RATE       = 10; /** The number of datagrams per second accepted from each client unless set otherwise. */
+    public static final int    DEFAULT_DOWNSAMPLE = 10; /** Under POLICY_DOWNSAMPLE, one in this many excess datagrams is accepted unless set otherwise. */
+
+    private static final int    MAX_CLIENTS     = 65536; /** The most clients tracked at once; the least recently seen makes room for a new one. */
+    private static final double PRESSURE_FACTOR = 0.25;  /** The fraction of the rate allowed under back-pressure. */
+
+    /**
+     * A snapshot of one client's counters.
+     */
+    public static class ClientStats
+    {
+        public final int    clientKey;  /** The client's key (see {@link Fix#keyFor}). */
+        public final String clientAddr; /** The client's address. */
+        public final long   accepted;   /** The number of datagrams accepted from the client. */
+        public final long   dropped;    /** The number of datagrams dropped from the client. */
+
+        ClientStats(int clientKey, String clientAddr, long accepted, long dropped)
+        {
+            this.clientKey  = clientKey;
+            this.clientAddr = clientAddr;
+            this.accepted   = accepted;
+            this.dropped    = dropped;
+        }
+    }
+
+    private final SparseIntArray    slots       = new SparseIntArray(); /** Maps each client key to its index in the arrays below. */
+    private double[]                tokens      = new double[16];       /** The tokens in each client's bucket. */
+    private long[]                  lastRefill  = new long[16];         /** When each bucket was last refilled. */
+    private long[]                  accepted    = new long[16];         /** The number of datagrams accepted from each client. */
+    private long[]                  dropped     = new long[16];         /** The number of datagrams dropped from each client. */
+    private int[]                   skipped     = new int[16];          /** The excess datagrams since the last one let through by downsampling. */
+    private int[]                   keys        = new int[16];          /** Each client's key. */
+    private String[]                addrs       = new String[16];       /** Each client's address, for display. */
+    private Fix[]                   held        = new Fix[16];          /** The fix held for each client under POLICY_KEEP_LATEST. */
+    private int[]                   newer       = new int[16];          /** The next more recently seen client, or -1. */
+    private int[]                   older       = new int[16];          /** The next less recently seen client, or -1. */
+    private int                     newest      = -1;                   /** The most recently seen client, or -1 if there are none. */
+    private int                     oldest      = -1;                   /** The least recently seen client, or -1 if there are none. */
+    private int                     count;                              /** The number of clients tracked. */
+    private int                     heldCount;                          /** The number of non-null entries in held. */
+    private long                    evictedClients;                     /** The number of clients forgotten to make room for new ones. */
+
+    private double                  rate        = DEFAULT_RATE;         /** The number of datagrams per second accepted from each client. */
+    private double                  burst       = 2 * DEFAULT_RATE;     /** The size of each client's bucket. */
+    private int                     policy      = POLICY_DROP_NEWEST;   /** What to do with datagrams that exceed the limit. */
+    private int                     downsample  = DEFAULT_DOWNSAMPLE;   /** Under POLICY_DOWNSAMPLE, one in this many excess datagrams is accepted. */
+    private boolean                 pressure;                           /** Whether the server is under global back-pressure. */
+
+    /**
+     * Sets the per-client limit.
+     *
+     * @param rate  The number of datagrams per second accepted from each client.
+     * @param burst The number of datagrams a client may send at once after a quiet period.
+     */
+    public synchronized void setRate(double rate, double burst)
+    {
+        this.rate   = rate;
+        this.burst  = Math.max(1, burst);
+    }
+
+    /**
+     * Sets what to do with datagrams that exceed the limit. Leaving POLICY_KEEP_LATEST discards the
+     * held fixes, which are counted as dropped.
+     *
+     * @param policy     One of the POLICY_ constants.
+     * @param downsample Under POLICY_DOWNSAMPLE, one in this many excess datagrams is accepted.
+     */
+    public synchronized void setPolicy(int policy, int downsample)
+    {
+        this.policy     = policy;
+        this.downsample = Math.max(1, downsample);
+        if(policy != POLICY_KEEP_LATEST)
+        {
+            for(int i = 0; i < held.length && heldCount > 0; i++)
+            {
+                if(held[i] == null)
+                    continue;
+                held[i] = null;
+                heldCount--;
+                dropped[i]++;
+            }
+        }
+    }
+
+    /**
+     * Turns global back-pressure on or off.
+     *
+     * @param pressure True if downstream consumers are falling behind.
+     */
+    public synchronized void setPressure(boolean pressure)
+    {
+        this.pressure = pressure;
+    }
+
+    /**
+     * Returns whether global back-pressure is on.
+     *
+     * @return True if global back-pressure is on.
+     */
+    public synchronized boolean isUnderPressure()
+    {
+        return pressure;
+    }
+
+    /**
+     * Forgets every client.
+     */
+    public synchronized void clear()
+    {
+        slots.clear();
+        Arrays.fill(held, null);
+        Arrays.fill(addrs, null);
+        count           = 0;
+        heldCount       = 0;
+        newest          = -1;
+        oldest          = -1;
+        evictedClients  = 0;
+        pressure        = false;
+    }
+
+    /**
+     * Decides what to do with a datagram from a client.
+     *
+     * @param clientKey  The client's key (see {@link Fix#keyFor}).
+     * @param clientAddr The client's address; only used the first time a client is seen.
+     * @param now        The current time in milliseconds.
+     * @return ACCEPT, REJECT or HOLD.
+     *
+     * @author Shane Spoor
+     */
+    public synchronized int check(int clientKey, InetAddress clientAddr, long now)
+    {
+        int i = slotFor(clientKey, clientAddr, now);
+        if(i != newest)
+        {
+            unlink(i);
+            linkNewest(i);
+        }
+
+        refill(i, now);
+        if(tokens[i] >= 1)
+        {
+            tokens[i] -= 1;
+            accepted[i]++;
+            if(held[i] != null)
+            {
+                // The new datagram supersedes the held one.
+                held[i] = null;
+                heldCount--;
+                dropped[i]++;
+            }
+            return ACCEPT;
+        }
+
+        switch(policy)
+        {
+            case POLICY_KEEP_LATEST:
+                if(held[i] != null)
+                    dropped[i]++;
+                return HOLD;
+            case POLICY_DOWNSAMPLE:
+                if(++skipped[i] >= downsample)
+                {
+                    skipped[i] = 0;
+                    accepted[i]++;
+                    return ACCEPT;
+                }
+                dropped[i]++;
+                return REJECT;
+            default:
+                dropped[i]++;
+                return REJECT;
+        }
+    }
+
+    /**
+     * Holds a decoded fix for which {@link #check} returned HOLD, replacing any fix already held for
+     * the same client.
+     *
+     * @param fix The fix to hold.
+     */
+    public synchronized void hold(Fix fix)
+    {
+        int i = slots.get(fix.clientKey, -1);
+        if(i < 0)
+            return;
+        if(held[i] == null)
+            heldCount++;
+        held[i] = fix;
+    }
+
+    /**
+     * Releases the held fixes whose clients have tokens again.
+     *
+     * @param now The current time in milliseconds.
+     * @param out Receives the released fixes.
+     */
+    public synchronized void drain(long now, List<Fix> out)
+    {
+        for(int i = 0; i < count && heldCount > 0; i++)
+        {
+            if(held[i] == null)
+                continue;
+            refill(i, now);
+            if(tokens[i] >= 1)
+            {
+                tokens[i] -= 1;
+                accepted[i]++;
+                out.add(held[i]);
+                held[i] = null;
+                heldCount--;
+            }
+        }
+    }
+
+    /**
+     * Returns a snapshot of every client's counters.
+     *
+     * @return The counters, most recently seen client first.
+     */
+    public synchronized ArrayList<ClientStats> getClientStats()
+    {
+        return getClientStats(count);
+    }
+
+    /**
+     * Returns a snapshot of the counters of the most recently seen clients, for display while the
+     * server runs; this doesn't depend on how many clients are tracked.
+     *
+     * @param max The most clients to return.
+     * @return The counters, most recently seen client first.
+     */
+    public synchronized ArrayList<ClientStats> getClientStats(int max)
+    {
+        ArrayList<ClientStats> stats = new ArrayList<ClientStats>(Math.min(max, count));
+        for(int i = newest; i >= 0 && stats.size() < max; i = older[i])
+            stats.add(new ClientStats(keys[i], addrs[i], accepted[i], dropped[i]));
+        return stats;
+    }
+
+    /**
+     * Returns the number of clients tracked.
+     *
+     * @return The number of clients.
+     */
+    public synchronized int getClientCount()
+    {
+        return count;
+    }
+
+    /**
+     * Returns the current policy.
+     *
+     * @return One of the POLICY_ constants.
+     */
+    public synchronized int getPolicy()
+    {
+        return policy;
+    }
+
+    /**
+     * Sets a client's counters, e.g. from a saved snapshot. The client starts with a full bucket and
+     * counts as seen more recently than the clients restored before it.
+     *
+     * @param stats The client's counters.
+     * @param now   The current time in milliseconds.
+     */
+    public synchronized void restore(ClientStats stats, long now)
+    {
+        int i = slots.get(stats.clientKey, -1);
+        if(i < 0)
+            i = addSlot(stats.clientKey, stats.clientAddr, now);
+        accepted[i] = stats.accepted;
+        dropped[i]  = stats.dropped;
+    }
+
+    /**
+     * Returns the number of clients forgotten to make room for new ones.
+     *
+     * @return The number of clients forgotten.
+     */
+    public synchronized long getEvictedClients()
+    {
+        return evictedClients;
+    }
+
+    /**
+     * Returns the index of a client's state, creating it with a full bucket if necessary.
+     */
+    private int slotFor(int clientKey, InetAddress clientAddr, long now)
+    {
+        int i = slots.get(clientKey, -1);
+        return i >= 0 ? i : addSlot(clientKey, clientAddr.getHostAddress(), now);
+    }
+
+    /**
+     * Creates the state for a new client with a full bucket, as the most recently seen client. If
+     * the table is full, the least recently seen client is forgotten and its slot reused; any fix
+     * held for it is dropped.
+     *
+     * @return The index.
+     */
+    private int addSlot(int clientKey, String clientAddr, long now)
+    {
+        int i;
+        if(count == MAX_CLIENTS)
+        {
+            i = oldest;
+            unlink(i);
+            slots.delete(keys[i]);
+            if(held[i] != null)
+                heldCount--;
+            evictedClients++;
+        }
+        else
+        {
+            if(count == tokens.length)
+                grow();
+            i = count++;
+        }
+
+        slots.put(clientKey, i);
+        tokens[i]       = burst;
+        lastRefill[i]   = now;
+        accepted[i]     = 0;
+        dropped[i]      = 0;
+        skipped[i]      = 0;
+        keys[i]         = clientKey;
+        addrs[i]        = clientAddr;
+        held[i]         = null;
+        linkNewest(i);
+        return i;
+    }
+
+    /**
+     * Doubles the capacity of the per-client arrays.
+     */
+    private void grow()
+    {
+        int n       = count * 2;
+        tokens      = Arrays.copyOf(tokens, n);
+        lastRefill  = Arrays.copyOf(lastRefill, n);
+        accepted    = Arrays.copyOf(accepted, n);
+        dropped     = Arrays.copyOf(dropped, n);
+        skipped     = Arrays.copyOf(skipped, n);
+        keys        = Arrays.copyOf(keys, n);
+        addrs       = Arrays.copyOf(addrs, n);
+        held        = Arrays.copyOf(held, n);
+        newer       = Arrays.copyOf(newer, n);
+        older       = Arrays.copyOf(older, n);
+    }
+
+    /**
+     * Takes a client out of the recency list.
+     */
+    private void unlink(int i)
+    {
+        if(newer[i] >= 0)
+            older[newer[i]] = older[i];
+        else
+            newest = older[i];
+        if(older[i] >= 0)
+            newer[older[i]] = newer[i];
+        else
+            oldest = newer[i];
+    }
+
+    /**
+     * Puts a client at the most recently seen end of the recency list.
+     */
+    private void linkNewest(int i)
+    {
+        newer[i] = -1;
+        older[i] = newest;
+        if(newest >= 0)
+            newer[newest] = i;
+        else
+            oldest = i;
+        newest = i;
+    }
+
+    /**
+     * Adds the tokens earned by a client since its bucket was last refilled.
+     */
+    private void refill(int i, long now)
+    {
+        long elapsed = now - lastRefill[i];
+        if(elapsed <= 0)
+            return;
+        double perMs  = (pressure ? rate * PRESSURE_FACTOR : rate) / 1000;
+        tokens[i]     = Math.min(burst, tokens[i] + elapsed * perMs);
+        lastRefill[i] = now;
+    }
+}
@@ -0,0 +1,275 @@
+package ca.bcit.A00852406;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * A recorded track loaded into memory for replay, as parallel primitive arrays sorted by time.
+ *
+ * Tracks can be read from GPX files (every trkpt and rtept, whatever track or route it belongs to)
+ * and from the binary fix logs written by {@link FixLogWriter}. Points without a time are taken to
+ * follow the previous point by a second; those before a GPX file's first timed point lead up to it a
+ * second apart, and a GPX file with no times at all starts when it's read.
+ *
+ * @author Shane Spoor
+ */
+public class RecordedTrack
+{
+    private static final long DEFAULT_STEP_MS = 1000; /** The time between points that have no time of their own. */
+
+    private long[]      times   = new long[1024];   /** The time of each point in milliseconds since the epoch. */
+    private double[]    lats    = new double[1024]; /** The latitude of each point in degrees. */
+    private double[]    lons    = new double[1024]; /** The longitude of each point in degrees. */
+    private int         size;                       /** The number of points. */
+    private boolean     timed;                      /** Whether a point with a time has been read. */
+
+    private RecordedTrack()
+    {}
+
+    /**
+     * Reads a track, choosing the format by the file's extension: ".gpx" for GPX and anything else
+     * for a binary fix log.
+     *
+     * @param file The file to read.
+     * @return The track.
+     * @throws IOException If the file can't be read or is malformed.
+     *
+     * @author Shane Spoor
+     */
+    public static RecordedTrack load(File file) throws IOException
+    {
+        RecordedTrack track = new RecordedTrack();
+        if(file.getName().toLowerCase().endsWith(".gpx"))
+            track.readGpx(file);
+        else
+            track.readFixLog(file);
+        track.sortByTime();
+        return track;
+    }
+
+    /** @return The number of points. */
+    public int size()               { return size; }
+    /** @param i A point's index. @return The point's time in milliseconds since the epoch. */
+    public long time(int i)         { return times[i]; }
+    /** @param i A point's index. @return The point's latitude in degrees. */
+    public double lat(int i)        { return lats[i]; }
+    /** @param i A point's index. @return The point's longitude in degrees. */
+    public double lon(int i)        { return lons[i]; }
+
+    /**
+     * Reads the points of a binary fix log, ignoring a truncated last record.
+     */
+    private void readFixLog(File file) throws IOException
+    {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024));
+        try
+        {
+            if(in.readInt() != FixLogWriter.MAGIC)
+                throw new IOException(file.getName() + " isn't a fix log");
+            while(true)
+            {
+                long   time;
+                double lat, lon;
+                try
+                {
+                    time = in.readLong();
+                    lat  = in.readDouble();
+                    lon  = in.readDouble();
+                } catch (EOFException e) {
+                    break;
+                }
+                add(time, lat, lon);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Reads the track and route points of a GPX file.
+     *
+     * The file is scanned tag by tag rather than parsed into a document, so large files are read in
+     * one pass without building a tree. Only the point tags, their lat and lon attributes and their
+     * time elements are looked at.
+     */
+    private void readGpx(File file) throws IOException
+    {
+        Reader        in      = new InputStreamReader(new FileInputStream(file), "UTF-8");
+        char[]        buf     = new char[64 * 1024];
+        StringBuilder tag     = new StringBuilder();
+        StringBuilder text    = new StringBuilder();
+        boolean       inTag   = false, inPoint = false, inTime = false;
+        double        lat     = 0, lon = 0;
+        long          time    = Long.MIN_VALUE;
+        try
+        {
+            for(int n; (n = in.read(buf)) > 0; )
+            {
+                for(int i = 0; i < n; i++)
+                {
+                    char c = buf[i];
+                    if(!inTag)
+                    {
+                        if(c == '<')
+                        {
+                            inTag = true;
+                            tag.setLength(0);
+                        }
+                        else if(inTime)
+                            text.append(c);
+                        continue;
+                    }
+                    if(c != '>')
+                    {
+                        tag.append(c);
+                        continue;
+                    }
+
+                    inTag = false;
+                    String name = tagName(tag);
+                    if(name.equals("trkpt") || name.equals("rtept"))
+                    {
+                        lat     = Double.parseDouble(attribute(tag, "lat", file));
+                        lon     = Double.parseDouble(attribute(tag, "lon", file));
+                        time    = Long.MIN_VALUE;
+                        inPoint = tag.charAt(tag.length() - 1) != '/';
+                        if(!inPoint)
+                            addPoint(time, lat, lon);
+                    }
+                    else if(inPoint && (name.equals("/trkpt") || name.equals("/rtept")))
+                    {
+                        addPoint(time, lat, lon);
+                        inPoint = false;
+                    }
+                    else if(inPoint && name.equals("time"))
+                    {
+                        inTime = true;
+                        text.setLength(0);
+                    }
+                    else if(inTime && name.equals("/time"))
+                    {
+                        time   = Fix.parseIsoTime(text.toString().trim());
+                        inTime = false;
+                    }
+                }
+            }
+            if(!timed)
+            {
+                long start = System.currentTimeMillis();
+                for(int i = 0; i < size; i++)
+                    times[i] = start + i * DEFAULT_STEP_MS;
+            }
+        } catch (IllegalArgumentException e) {
+            throw new IOException(file.getName() + ": " + e.getMessage());
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Adds a GPX point, giving it a time a second after the previous point's if it has none. The
+     * points before the first timed point are given times once it's read, counting back from it.
+     */
+    private void addPoint(long time, double lat, double lon)
+    {
+        if(time == Long.MIN_VALUE)
+            time = size == 0 ? 0 : times[size - 1] + DEFAULT_STEP_MS;
+        else if(!timed)
+        {
+            for(int i = 0; i < size; i++)
+                times[i] = time - (size - i) * DEFAULT_STEP_MS;
+            timed = true;
+        }
+        add(time, lat, lon);
+    }
+
+    private void add(long time, double lat, double lon)
+    {
+        if(size == times.length)
+        {
+            times   = Arrays.copyOf(times, size * 2);
+            lats    = Arrays.copyOf(lats, size * 2);
+            lons    = Arrays.copyOf(lons, size * 2);
+        }
+        times[size] = time;
+        lats[size]  = lat;
+        lons[size]  = lon;
+        size++;
+    }
+
+    /**
+     * Orders the points by time, keeping the file order of points with equal times. Recorded tracks
+     * are almost always in order already, in which case nothing is moved.
+     */
+    private void sortByTime()
+    {
+        int i = 1;
+        while(i < size && times[i - 1] <= times[i])
+            i++;
+        if(i >= size)
+            return;
+
+        Integer[] order = new Integer[size];
+        for(i = 0; i < size; i++)
+            order[i] = i;
+        final long[] t = times;
+        Arrays.sort(order, new Comparator<Integer>()
+        {
+            public int compare(Integer a, Integer b)
+            {
+                return t[a] < t[b] ? -1 : t[a] > t[b] ? 1 : 0;
+            }
+        });
+
+        long[]   sortedTimes = new long[size];
+        double[] sortedLats  = new double[size], sortedLons = new double[size];
+        for(i = 0; i < size; i++)
+        {
+            sortedTimes[i] = times[order[i]];
+            sortedLats[i]  = lats[order[i]];
+            sortedLons[i]  = lons[order[i]];
+        }
+        times   = sortedTimes;
+        lats    = sortedLats;
+        lons    = sortedLons;
+    }
+
+    /**
+     * Returns a tag's name, including a leading '/' for a closing tag.
+     */
+    private static String tagName(StringBuilder tag)
+    {
+        int end = tag.length() > 0 && tag.charAt(0) == '/' ? 1 : 0;
+        while(end < tag.length() && !Character.isWhitespace(tag.charAt(end)) && tag.charAt(end) != '/')
+            end++;
+        return tag.substring(0, end);
+    }
+
+    /**
+     * Returns the value of an attribute of a tag.
+     *
+     * @throws IOException If the tag doesn't have the attribute.
+     */
+    private static String attribute(StringBuilder tag, String name, File file) throws IOException
+    {
+        for(int i = tag.indexOf(name); i >= 0; i = tag.indexOf(name, i + 1))
+        {
+            int eq = i + name.length();
+            if(!Character.isWhitespace(tag.charAt(i - 1)) || eq + 1 >= tag.length() || tag.charAt(eq) != '=')
+                continue;
+            char quote = tag.charAt(eq + 1);
+            int  close = tag.indexOf(String.valueOf(quote), eq + 2);
+            if(close > 0)
+                return tag.substring(eq + 2, close);
+        }
+        throw new IOException(file.getName() + ": point without " + name);
+    }
+}
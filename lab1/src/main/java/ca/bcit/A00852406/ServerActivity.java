@@ -1,157 +1,398 @@
 package ca.bcit.A00852406;
 
 import android.app.Activity;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
 import android.graphics.Color;
-import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.SystemClock;
 import android.view.View;
 import android.view.Window;
+import android.widget.Button;
 import android.widget.EditText;
 import android.widget.TextView;
 
+import ca.bcit.A00852406.util.FirstFrame;
+import ca.bcit.A00852406.util.Tracer;
+
 import com.google.android.gms.maps.GoogleMap;
 import com.google.android.gms.maps.MapFragment;
 import com.google.android.gms.maps.model.LatLng;
 import com.google.android.gms.maps.model.MarkerOptions;
+import com.google.android.gms.maps.model.TileOverlay;
+import com.google.android.gms.maps.model.TileOverlayOptions;
 
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.InetAddress;
-import java.nio.ByteBuffer;
-import java.util.Scanner;
+import java.io.File;
+import java.util.ArrayList;
 
 /**
  * Encapsulates the server's functionality.
  *
  * This class displays a GUI allowing the user to start and stop listening for updates on a given
  * port. It also prints out the data received, the client from whom it was received, and plots the
- * points on a map as they're generated.
+ * points on a map as they're generated. The listening itself is done by {@link TrackingService}, so
+ * it carries on when the activity is recreated.
+ *
+ * The map is the slowest part of the screen to create, so it's only attached once the first frame
+ * has been drawn; fixes that arrive before then are kept and plotted when it's ready. The time to the
+ * first interactive frame and to the map being ready are shown in the log.
+ *
+ * While the server runs, the most recently heard from clients, how many of their datagrams the
+ * ingest limiter has accepted and dropped, and how far and fast they're going are shown above the
+ * map, along with the number of subscribers and the datagrams sent to them. The limit per client is
+ * read when the server starts; what's done with datagrams over it can be changed at any time.
  *
  * @author Shane Spoor
  */
 public class ServerActivity extends Activity
 {
 
-    private RecvLocationUpdate recvTask;    /** Handle to an AsyncTask object which listens for and displays client data.*/
+    private static final String GEOFENCE_FILE       = "geofences.txt"; /** The fence set loaded when the server starts. */
+    private static final long   HEATMAP_REFRESH_MS  = 1000;            /** How often the heatmap picks up new fixes. */
+    private static final int    MAX_REPLOTTED       = 2000;            /** The most markers plotted again when the activity is recreated, or kept until the map is ready. */
+    private static final String STATE_HEATMAP       = "heatmap";       /** The saved state key for whether the heatmap was showing. */
+    private static final long   CLIENTS_REFRESH_MS  = 1000;            /** How often the client counts are refreshed while the server runs. */
+    private static final int    MAX_CLIENTS_SHOWN   = 5;               /** The most clients whose counts are shown while the server runs. */
+    private static final int[]  POLICY_LABELS       = { R.string.server_policy_drop, R.string.server_policy_keep_latest,
+                                                        R.string.server_policy_downsample }; /** The policy button's label for each IngestLimiter.POLICY_ constant. */
+
+    private TrackingService service;        /** The service that receives the data, or null until the activity is bound to it. */
     private TextView  log;                  /** Handle to the Text View in which to display the data. */
-    private GoogleMap mapHandle;            /** Handle to a GoogleMap object for plotting the points. */
+    private TextView  clients;              /** Handle to the Text View showing the client counts while the server runs. */
+    private GoogleMap mapHandle;            /** Handle to a GoogleMap object for plotting the points, or null until the map is ready. */
+    private final ServerUpdates updates = new ServerUpdates(); /** Displays the service's output. */
+    private final Handler   handler = new Handler();    /** Schedules heatmap refreshes. */
+    private TileOverlay     heatmap;                    /** The heatmap overlay, or null when showing markers. */
+    private int             heatmapVersion;             /** The density grid's version when the heatmap was last refreshed. */
+    private boolean         pendingHeatmap;             /** Whether the heatmap is to be shown once the map is ready. */
+    private final ArrayList<LatLng> pendingMarkers = new ArrayList<LatLng>(); /** The markers to plot once the map is ready. */
+    private long            createTime;                 /** The uptime at which the activity was created. */
+    private boolean         destroyed;                  /** Whether the activity has been destroyed, so the map is no longer wanted. */
 
     /**
-     * This class creates a socket, listens for client data on it, and displays any data received.
-     * @author <u>Aman Abdulla</u>
-     * @author Shane Spoor
+     * Makes the map ask for the heatmap's tiles again if any fix has arrived since the last refresh.
+     * The tile provider only redraws the tiles whose counts changed.
      */
-    private class RecvLocationUpdate extends AsyncTask<String, String, Void> {
-        private static final int DGRAM_SIZE = 1024; /** The size of the datagram in which incoming data will be stored. */
+    private final Runnable refreshHeatmap = new Runnable()
+    {
+        public void run()
+        {
+            if(heatmap == null || service == null)
+                return;
+            int version = service.getDensityGrid().getVersion();
+            if(version != heatmapVersion)
+            {
+                heatmapVersion = version;
+                heatmap.clearTileCache();
+            }
+            handler.postDelayed(this, HEATMAP_REFRESH_MS);
+        }
+    };
 
-        private InetAddress     clientAddr;                                         /** The client's address. */
-        private DatagramSocket  udpSock;                                            /** A UDP socket for receiving data. */
-        private int             port;                                               /** The port on which to listen. */
-        private byte[]          data = new byte[DGRAM_SIZE];                        /** A byte array in which to actually store the data. */
-        private DatagramPacket  dgramPacket = new DatagramPacket(data, DGRAM_SIZE); /** A packet object that encapsulates the buffer. */
+    /**
+     * Shows the counts and track figures of the most recently heard from clients, and carries on doing so every
+     * {@link #CLIENTS_REFRESH_MS} until the server stops.
+     */
+    private final Runnable refreshClients = new Runnable()
+    {
+        public void run()
+        {
+            if(service == null || !service.isServerRunning())
+                return;
+            IngestLimiter limiter = service.getLimiter();
+            TrackStats    tracks  = service.getTrackStats();
+            StringBuilder text    = new StringBuilder();
+            text.append(limiter.getClientCount()).append(" clients, ")
+                .append(limiter.getEvictedClients()).append(" forgotten");
+            if(tracks.getFutureFixes() > 0)
+                text.append(", ").append(tracks.getFutureFixes()).append(" fixes dated ahead ignored");
+            SubscriberFanOut fanOut = service.getFanOut();
+            text.append('\n').append(fanOut.getSubscriberCount()).append(" subscribers, ")
+                .append(fanOut.getDatagramsSent()).append(" datagrams sent");
+            for(IngestLimiter.ClientStats stats : limiter.getClientStats(MAX_CLIENTS_SHOWN))
+            {
+                TrackStats.Summary track = tracks.get(stats.clientKey);
+                text.append('\n').append(stats.clientAddr).append(": ").append(stats.accepted)
+                    .append(" accepted, ").append(stats.dropped).append(" dropped");
+                if(track != null)
+                    text.append(", ").append(Math.round(track.distance)).append(" m at ")
+                        .append(Math.round(track.currentSpeed * 10) / 10.0).append(" m/s")
+                        .append(track.stopped ? ", stopped" : "");
+            }
+            clients.setText(text);
+            handler.postDelayed(this, CLIENTS_REFRESH_MS);
+        }
+    };
 
-        @Override
+    /**
+     * Displays the fixes received by the service and any errors it reports.
+     *
+     * The service calls this on the main thread.
+     *
+     * @author Shane Spoor
+     */
+    private class ServerUpdates implements TrackingService.ServerListener
+    {
         /**
-         * Notifies the user that the server is listening for data before attempting to open the socket.
+         * Plots the fix and displays it in the log. In heatmap mode the fix isn't given a marker; it
+         * shows up in the heatmap on its next refresh.
+         *
+         * @param fix The received fix.
+         *
          * @author Shane Spoor
          */
-        protected void onPreExecute()
+        public void onFixReceived(Fix fix)
         {
-            log.append("Listening for data...\n");
+            long render = Tracer.begin("server.render");
+            long trace  = Tracer.begin("server.marker");
+            if(heatmap == null)
+                plot(fix.lat, fix.lon);
+            Tracer.end(trace);
+            trace = Tracer.begin("server.log");
+            log.setTextColor(Color.BLACK);
+            log.append(ServerLog.describe(fix));
+            Tracer.end(trace);
+            Tracer.end(render);
         }
 
         /**
-         * Listens for data and publishes it to the UI thread for display.
-         *
-         * This function will execute in its own thread (which is handled by the AsyncTask object). It
-         * publishes data to the UI thread upon receiving it, then continues to monitor the socket. If
-         * the user cancels the asynchronous task, this thread will exit.
+         * Displays the message.
          *
-         * @param params A string representation of the port on which to listen.
-         * @return Null
+         * @param message The message.
          *
-         * @author Shane Sporr
+         * @author Shane Spoor
          */
-        protected Void doInBackground(String... params) {
-            try
-            {
-                port               = Integer.parseInt(params[0]);
-                udpSock            = new DatagramSocket(port);
-                boolean cancelled  = isCancelled();
-                String data;
-                while(!cancelled)
-                {
-                    udpSock.receive(dgramPacket);
+        public void onServerMessage(String message)
+        {
+            log.setTextColor(Color.BLACK);
+            log.append(message);
+        }
 
-                    clientAddr      = dgramPacket.getAddress();
-                    data = new String(dgramPacket.getData(), 0, dgramPacket.getLength());
-                    publishProgress(data + "\nClient address: " + clientAddr.getHostAddress() + "\n");
-                    cancelled = isCancelled();
-                }
-            } catch (Exception e) {
-                publishProgress("Receive failure: " + e.getMessage());
-            } finally {
-                if(udpSock != null)
-                    udpSock.close();
-                return null;
-            }
+        /**
+         * Displays the error in red.
+         *
+         * @param message The error message.
+         *
+         * @author Shane Spoor
+         */
+        public void onServerError(String message)
+        {
+            log.setTextColor(Color.RED);
+            log.append(message);
         }
 
         /**
-         * Retrieves the update from the background thread and displays it in the GUI. If the thread
-         * reported an error condidition, this is shown in red.
+         * Shows the restored log and plots the restored fixes. If a server was restored, its port is
+         * filled in so that starting the server resumes it.
          *
-         * @param update The update string to display.
+         * @param port The restored server's port, or 0 if nothing was restored.
          *
-         * @author Shane Sporr
+         * @author Shane Spoor
          */
-        protected void onProgressUpdate(String... update)
+        public void onStateRestored(int port)
         {
-            if(update[0].contains("Receive failure:"))
+            StringBuilder text = new StringBuilder();
+            for(String line : service.getLog().lines())
+                text.append(line);
+            log.setTextColor(Color.BLACK);
+            log.setText(text);
+            replot();
+            if(port != 0)
             {
-                log.setTextColor(Color.RED);
-                log.append(update[0]);
-                this.cancel(true);
+                fillPort();
+                show("Start to resume receiving on port " + port + "\n", Color.BLACK);
             }
-            else
+        }
+    }
+
+    /**
+     * Reports the outcome of writing a JSON trace.
+     */
+    private final Tracer.Callback traceWritten = new Tracer.Callback()
+    {
+        public void onTraceWritten(final File file, final int events)
+        {
+            runOnUiThread(new Runnable()
+            {
+                public void run()
+                {
+                    show("Wrote " + events + " trace events to " + file.getPath() + "\n", Color.BLACK);
+                }
+            });
+        }
+
+        public void onTraceFailure(final String message)
+        {
+            runOnUiThread(new Runnable()
             {
-                LatLng loc;
-                Scanner scan = new Scanner(update[0]);
-                double lat = scan.nextDouble(), lon = scan.nextDouble();
-                String latStr, longStr;
-                loc                         = new LatLng(lat, lon);
-
-                mapHandle.addMarker(new MarkerOptions().position(loc));
-                latStr  = "Latitude: " + (lat < 0 ? lat * -1 + "\u00B0 S" : lat + "\u00B0 N") + "\n";
-                longStr = "Longitude: " + (lon < 0 ? lon * -1 + "\u00B0 W" : lon + "\u00B0 E") + "\n";
-                log.setTextColor(Color.BLACK);
-                log.append(scan.next() + "\n" + latStr + longStr);
+                public void run()
+                {
+                    show(message, Color.RED);
+                }
+            });
+        }
+    };
+
+    /**
+     * Attaches the map once the first frame has been drawn, and shows how long startup took.
+     */
+    private final FirstFrame.Listener firstFrame = new FirstFrame.Listener()
+    {
+        public void onFirstFrame(long elapsedMs)
+        {
+            if(destroyed)
+                return;
+            show("First frame in " + elapsedMs + " ms\n", Color.BLACK);
+            attachMap();
+        }
+    };
+
+    /**
+     * Binds to the tracking service. Once bound, the service's log is shown again, followed by
+     * anything shown before the service was bound, and the fixes it received while the activity
+     * didn't exist (e.g., before the screen was rotated) are plotted again. If the service is still
+     * restoring the state saved before the process was killed, that's left until it's restored.
+     */
+    private final ServiceConnection connection = new ServiceConnection()
+    {
+        public void onServiceConnected(ComponentName name, IBinder binder)
+        {
+            service = ((TrackingService.LocalBinder)binder).getService();
+
+            StringBuilder text  = new StringBuilder();
+            String        early = log.getText().toString();
+            for(String line : service.getLog().lines())
+                text.append(line);
+            log.setTextColor(Color.BLACK);
+            log.setText(text);
+            if(early.length() > 0)
+                show(early, Color.BLACK);
+
+            if(!service.isRestoring())
+            {
+                replot();
+                if(!service.isServerRunning())
+                    fillPort();
             }
+            service.addServerListener(updates);
+            ((Button)findViewById(R.id.server_policy)).setText(POLICY_LABELS[service.getLimiter().getPolicy()]);
+            refreshClients.run();
+        }
 
+        public void onServiceDisconnected(ComponentName name)
+        {
+            service = null;
         }
+    };
+
+    /**
+     * Plots the fixes in the service's store. Only the most recent {@link #MAX_REPLOTTED} fixes get
+     * markers; if there are more than that, or the heatmap was showing before, the heatmap is shown
+     * instead, since it draws every fix at a cost that doesn't depend on their number.
+     */
+    private void replot()
+    {
+        long              trace = Tracer.begin("server.replot");
+        FixStore.Snapshot fixes = service.getStore().snapshot();
+        if(pendingHeatmap || fixes.end() - fixes.start() > MAX_REPLOTTED)
+            showHeatmap();
+        else
+            for(long seq = fixes.start(); seq < fixes.end(); seq++)
+                plot(fixes.lat(seq), fixes.lon(seq));
+        Tracer.end(trace);
+    }
+
+    /**
+     * Fills in the port the server last listened on, if the user hasn't entered one.
+     */
+    private void fillPort()
+    {
+        EditText editPort = (EditText)findViewById(R.id.edit_port);
+        if(service.getServerPort() != 0 && editPort.getText().length() == 0)
+            editPort.setText(String.valueOf(service.getServerPort()));
     }
 
     /**
-     * Sets the layout and obtains a handle to the map.
+     * Sets the layout and binds to the tracking service. The map is attached after the first frame.
      *
      * @param savedInstanceState The state of the app before being destroyed by a swap out of memory
-     *                           or the user rotating the screen (currently unused).
+     *                           or the user rotating the screen; says whether the heatmap was showing.
      * @author Shane Spoor
      */
     public void onCreate(Bundle savedInstanceState)
     {
+        createTime = SystemClock.uptimeMillis();
         super.onCreate(savedInstanceState);
+        pendingHeatmap = savedInstanceState != null && savedInstanceState.getBoolean(STATE_HEATMAP);
         this.requestWindowFeature(Window.FEATURE_NO_TITLE);
         setContentView(R.layout.fragment_server);
         log = (TextView)findViewById(R.id.server_log);
-        mapHandle = ((MapFragment) getFragmentManager().findFragmentById(R.id.map)).getMap();
+        clients = (TextView)findViewById(R.id.server_clients);
+        bindService(new Intent(this, TrackingService.class), connection, Context.BIND_AUTO_CREATE);
+        FirstFrame.watch(getWindow().getDecorView(), createTime, firstFrame);
     }
 
     /**
-     * Kills the server thread if it's active.
+     * Adds the map fragment, unless it was restored along with the activity, and obtains a handle to
+     * the map. If the service is bound, the fixes received so far are then plotted, or the heatmap
+     * shown if it's pending; otherwise that's left to when it's bound.
      *
-     * If the server thread isn't released, it may cause issues when trying to run the server twice.
-     * It must therefore be cancelled when the activity is destroyed.
+     * @author Shane Spoor
+     */
+    private void attachMap()
+    {
+        long        trace    = Tracer.begin("server.attachMap");
+        MapFragment fragment = (MapFragment)getFragmentManager().findFragmentById(R.id.map);
+        if(fragment == null)
+        {
+            fragment = MapFragment.newInstance();
+            getFragmentManager().beginTransaction().add(R.id.map, fragment).commitAllowingStateLoss();
+            getFragmentManager().executePendingTransactions();
+        }
+        mapHandle = fragment.getMap();
+        Tracer.end(trace);
+
+        if(mapHandle == null)
+        {
+            show("Map failure: Google Play services unavailable\n", Color.RED);
+            return;
+        }
+        show("Map ready in " + (SystemClock.uptimeMillis() - createTime) + " ms\n", Color.BLACK);
+        if(service == null)
+            return;
+        if(pendingHeatmap)
+            showHeatmap();
+        for(LatLng position : pendingMarkers)
+            mapHandle.addMarker(new MarkerOptions().position(position));
+        pendingMarkers.clear();
+    }
+
+    /**
+     * Remembers whether the heatmap is showing, and has the tracking service save the server's state
+     * in the background in case the process is killed while the activity is away.
+     *
+     * @param outState Receives the activity's state.
+     *
+     * @author Shane Spoor
+     */
+    @Override
+    protected void onSaveInstanceState(Bundle outState)
+    {
+        super.onSaveInstanceState(outState);
+        outState.putBoolean(STATE_HEATMAP, heatmap != null || pendingHeatmap);
+        if(service != null)
+            service.saveState();
+    }
+
+    /**
+     * Unbinds from the tracking service.
+     *
+     * The server itself keeps running in the service, so rotating the screen doesn't interrupt it;
+     * it's only stopped when the user presses stop.
      *
      * @author Shane Spoor
      */
@@ -159,16 +400,25 @@ public class ServerActivity extends Activity
     public void onDestroy()
     {
         super.onDestroy();
-        if(recvTask != null)
-            recvTask.cancel(true);
+        destroyed = true;
+        handler.removeCallbacks(refreshHeatmap);
+        handler.removeCallbacks(refreshClients);
+        if(service != null)
+            service.removeServerListener(updates);
+        unbindService(connection);
+        service = null;
     }
 
 
     /**
-     * Starts an asynchronous task to listen for incoming data.
+     * Tells the tracking service to listen for incoming data.
      *
-     * If the user didn't enter anything for the port, the program will not prompt them to enter a
-     * valid port number and not create the task.
+     * If the user didn't enter a port from 1 to 65535, they're prompted to enter a valid port number
+     * and the server isn't started. The per-client limit is taken from the rate field, or is
+     * {@link IngestLimiter#DEFAULT_RATE} if it's empty, with bursts of up to two seconds' worth. If
+     * the service restored a server that hasn't been started since, it carries on from the
+     * restored fixes. If there's a geofences.txt file in the app's external files directory, its
+     * fences are loaded and crossings are shown in the log.
      *
      * @param view Unused
      *
@@ -176,8 +426,13 @@ public class ServerActivity extends Activity
      */
     public void startListening(View view)
     {
-        if(recvTask != null)
+        if(service == null || service.isServerRunning())
             return;
+        if(service.isRestoring())
+        {
+            show("Still restoring the saved state\n", Color.RED);
+            return;
+        }
 
         final EditText    editPort = (EditText)findViewById(R.id.edit_port);
         final String      portStr = editPort.getText().toString();
@@ -188,15 +443,241 @@ public class ServerActivity extends Activity
             editPort.setHint("Port cannot be empty");
             return;
         }
-        recvTask = new RecvLocationUpdate();
-        recvTask.execute(portStr);
+        int port;
+        try
+        {
+            port = Integer.parseInt(portStr);
+        } catch (NumberFormatException e) {
+            port = 0;
+        }
+        if(port < 1 || port > 65535)
+        {
+            editPort.setText("");
+            editPort.setHintTextColor(Color.RED);
+            editPort.setHint("Port must be 1 to 65535");
+            return;
+        }
+
+        final EditText    editRate = (EditText)findViewById(R.id.edit_rate);
+        final String      rateStr  = editRate.getText().toString();
+        double            rate     = IngestLimiter.DEFAULT_RATE;
+        if(!rateStr.equals(""))
+        {
+            try
+            {
+                rate = Double.parseDouble(rateStr);
+            } catch (NumberFormatException e) {
+                rate = 0;
+            }
+            if(!(rate > 0))
+            {
+                editRate.setText("");
+                editRate.setHintTextColor(Color.RED);
+                editRate.setHint("Rate must be above 0");
+                return;
+            }
+        }
+        service.getLimiter().setRate(rate, 2 * rate);
+        service.startServer(port);
+        show("Listening for data, " + rate + " fixes/s per client...\n", Color.BLACK);
+        handler.removeCallbacks(refreshClients);
+        handler.postDelayed(refreshClients, CLIENTS_REFRESH_MS);
+
+        File dir = getExternalFilesDir(null);
+        if(dir != null && new File(dir, GEOFENCE_FILE).exists())
+            service.loadGeofences(new File(dir, GEOFENCE_FILE));
+    }
+
+    /**
+     * Moves the ingest limiter on to the next thing to do with datagrams over a client's limit:
+     * dropping them, keeping the latest for when the client is back under the limit, or letting one
+     * in every {@link IngestLimiter#DEFAULT_DOWNSAMPLE} through. The change applies immediately,
+     * whether or not the server is running.
+     *
+     * @param view The policy button, which is relabelled.
+     *
+     * @author Shane Spoor
+     */
+    public void cyclePolicy(View view)
+    {
+        if(service == null)
+            return;
+
+        IngestLimiter limiter = service.getLimiter();
+        int           policy  = (limiter.getPolicy() + 1) % POLICY_LABELS.length;
+        limiter.setPolicy(policy, IngestLimiter.DEFAULT_DOWNSAMPLE);
+        ((Button)view).setText(POLICY_LABELS[policy]);
+        show(getString(POLICY_LABELS[policy]) + "\n", Color.BLACK);
+    }
+
+    /**
+     * Switches the map between a marker per fix and a heatmap of fix density.
+     *
+     * Turning the heatmap on removes the existing markers, since at the densities where the heatmap
+     * is useful they're what makes the map slow; fixes received after it's turned off get markers
+     * again. Before the map is ready, this only changes what's shown once it is.
+     *
+     * @param view Unused
+     *
+     * @author Shane Spoor
+     */
+    public void toggleHeatmap(View view)
+    {
+        if(service == null)
+            return;
+
+        if(heatmap != null)
+        {
+            handler.removeCallbacks(refreshHeatmap);
+            heatmap.remove();
+            heatmap = null;
+            return;
+        }
+        if(pendingHeatmap)
+        {
+            pendingHeatmap = false;
+            return;
+        }
+        showHeatmap();
+    }
+
+    /**
+     * Removes the markers and shows the heatmap, or arranges for that to happen once the map is ready.
+     * The service must be bound.
+     */
+    private void showHeatmap()
+    {
+        pendingMarkers.clear();
+        if(mapHandle == null)
+        {
+            pendingHeatmap = true;
+            return;
+        }
+
+        pendingHeatmap = false;
+        mapHandle.clear();
+        heatmapVersion = service.getDensityGrid().getVersion();
+        heatmap = mapHandle.addTileOverlay(new TileOverlayOptions()
+                .tileProvider(new HeatmapTileProvider(service.getDensityGrid())));
+        handler.postDelayed(refreshHeatmap, HEATMAP_REFRESH_MS);
+    }
+
+    /**
+     * Gives a fix a marker, or keeps it to be given one once the map is ready. If more than
+     * {@link #MAX_REPLOTTED} fixes are waiting for the map, the heatmap is shown in their place.
+     *
+     * @param lat The fix's latitude in degrees.
+     * @param lon The fix's longitude in degrees.
+     */
+    private void plot(double lat, double lon)
+    {
+        if(mapHandle != null)
+        {
+            mapHandle.addMarker(new MarkerOptions().position(new LatLng(lat, lon)));
+            return;
+        }
+        if(pendingHeatmap)
+            return;
+        pendingMarkers.add(new LatLng(lat, lon));
+        if(pendingMarkers.size() > MAX_REPLOTTED)
+            showHeatmap();
+    }
+
+    /**
+     * Turns tracing of the server pipeline on or off.
+     *
+     * Where platform tracing is available the sections show up in systrace; otherwise they're written
+     * to a Chrome JSON trace in the app's external files directory when tracing is turned off.
+     *
+     * @param view Unused
+     *
+     * @author Shane Spoor
+     */
+    public void toggleTrace(View view)
+    {
+        if(Tracer.isEnabled())
+        {
+            Tracer.stop(traceWritten);
+            show("Tracing stopped\n", Color.BLACK);
+            return;
+        }
+
+        File dir = getExternalFilesDir(null);
+        if(!Tracer.usesPlatformTrace() && dir == null)
+        {
+            show("Trace failure: external storage unavailable\n", Color.RED);
+            return;
+        }
+        Tracer.start(dir == null ? null : new File(dir, "trace-" + System.currentTimeMillis() + ".json"));
+        show(Tracer.usesPlatformTrace() ? "Tracing to systrace\n" : "Tracing\n", Color.BLACK);
     }
 
     /**
-     * Cancels the current asynchronous task.
+     * Exports every received track as GPX.
      *
-     * This stops the listening thread and notifies the user that it was cancelled. If there is no
-     * thread running, it simply returns immediately.
+     * @param view Unused
+     *
+     * @author Shane Spoor
+     */
+    public void exportGpx(View view)
+    {
+        exportTracks(TrackExporter.FORMAT_GPX, ".gpx");
+    }
+
+    /**
+     * Exports every received track as GeoJSON.
+     *
+     * @param view Unused
+     *
+     * @author Shane Spoor
+     */
+    public void exportGeoJson(View view)
+    {
+        exportTracks(TrackExporter.FORMAT_GEOJSON, ".geojson");
+    }
+
+    /**
+     * Asks the tracking service to export every received track to a new file in the app's external
+     * files directory, and reports the outcome in the log.
+     *
+     * @param format    One of the TrackExporter.FORMAT_ constants.
+     * @param extension The file extension for the format.
+     */
+    private void exportTracks(int format, String extension)
+    {
+        if(service == null)
+            return;
+
+        File dir = getExternalFilesDir(null);
+        if(dir == null)
+        {
+            show("Export failure: external storage unavailable\n", Color.RED);
+            return;
+        }
+
+        File file = new File(dir, "tracks-" + System.currentTimeMillis() + extension);
+        service.exportTracks(format, null, Long.MIN_VALUE, Long.MAX_VALUE, file, new TrackingService.ExportListener()
+        {
+            public void onExportFinished(File file, long points, long elapsedMs, boolean truncated)
+            {
+                show("Exported " + points + " points to " + file.getPath() + " in " + elapsedMs + " ms\n", Color.BLACK);
+                if(truncated)
+                    show("The oldest fixes had already been dropped from memory and aren't in the export\n", Color.RED);
+            }
+
+            public void onExportFailure(String message)
+            {
+                show(message, Color.RED);
+            }
+        });
+    }
+
+    /**
+     * Tells the tracking service to stop listening.
+     *
+     * This stops the listening thread and notifies the user that it was cancelled, along with how many
+     * datagrams were accepted and dropped from each client and a summary of each client's track. If
+     * there is no thread running, it simply returns immediately.
      *
      * @param view Unused
      *
@@ -204,11 +685,31 @@ public class ServerActivity extends Activity
      */
     public void stopListening(View view)
     {
-        if(recvTask == null || recvTask.isCancelled())
+        if(service == null || !service.isServerRunning())
             return;
 
-        recvTask.cancel(true);
-        recvTask = null;
-        log.append("Stopped\n");
+        for(IngestLimiter.ClientStats stats : service.getLimiter().getClientStats())
+            show("Client " + stats.clientAddr + ": " + stats.accepted + " accepted, " + stats.dropped + " dropped\n", Color.BLACK);
+        for(TrackStats.Summary track : service.getTrackStats().getAll())
+            show("Client " + track.clientAddr + ": " + Math.round(track.distance) + " m at "
+                 + Math.round(track.averageSpeed * 10) / 10.0 + " m/s, " + Math.round(track.windowDistance)
+                 + " m in the last " + TrackStats.DEFAULT_WINDOW_MS / 60000 + " min, " + track.stops
+                 + " stops totalling " + track.dwellMs / 1000 + " s\n", Color.BLACK);
+        show("Stopped\n", Color.BLACK);
+        service.stopServer();
+    }
+
+    /**
+     * Displays a line in the log and adds it to the log the service keeps for redisplay.
+     *
+     * @param text   The text, ending in a newline.
+     * @param colour The colour to display the log in.
+     */
+    private void show(String text, int colour)
+    {
+        log.setTextColor(colour);
+        log.append(text);
+        if(service != null)
+            service.appendLog(text);
     }
 }
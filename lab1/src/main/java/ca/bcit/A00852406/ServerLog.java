@@ -0,0 +1,110 @@
+package ca.bcit.A00852406;
+
+import java.util.Arrays;
+
+/**
+ * The most recent entries of the server's log, kept by the service so that a recreated activity can
+ * show them again.
+ *
+ * Entries are held in a fixed-size ring, so the oldest are overwritten once it's full. Received fixes
+ * are stored as they are and only formatted when the log is read, which keeps adding one cheap enough
+ * for the receiving thread. Any thread may add or read.
+ *
+ * @author Shane Spoor
+ */
+public class ServerLog
+{
+    public static final int CAPACITY = 512; /** The number of entries kept. */
+
+    private final Object[]  entries = new Object[CAPACITY]; /** The entries, each a String or a Fix. */
+    private int             next;                           /** The index at which the next entry goes. */
+    private int             count;                          /** The number of entries held. */
+
+    /**
+     * Adds a line of text.
+     *
+     * @param text The text, ending in a newline.
+     */
+    public synchronized void add(String text)
+    {
+        put(text);
+    }
+
+    /**
+     * Adds a received fix.
+     *
+     * @param fix The fix.
+     */
+    public synchronized void add(Fix fix)
+    {
+        put(fix);
+    }
+
+    /**
+     * Returns the entries as text, oldest first.
+     *
+     * @return The text of each entry.
+     */
+    public synchronized String[] lines()
+    {
+        String[] lines = new String[count];
+        for(int i = 0; i < count; i++)
+        {
+            Object e = entries[(next - count + i + CAPACITY) % CAPACITY];
+            lines[i] = e instanceof Fix ? describe((Fix)e) : (String)e;
+        }
+        return lines;
+    }
+
+    /**
+     * Puts the lines of a saved snapshot before the entries added since the log was created, since
+     * the state is restored in the background while the log may already be in use.
+     *
+     * @param lines The text of each entry, oldest first.
+     */
+    public synchronized void restore(String[] lines)
+    {
+        String[] added = lines();
+        clear();
+        for(String line : lines)
+            put(line);
+        for(String line : added)
+            put(line);
+    }
+
+    /**
+     * Removes every entry.
+     */
+    public synchronized void clear()
+    {
+        Arrays.fill(entries, null);
+        next    = 0;
+        count   = 0;
+    }
+
+    /**
+     * Formats a fix the way the server displays it: the time, then the latitude and longitude on
+     * their own lines with their hemispheres.
+     *
+     * @param fix The fix.
+     * @return The text, ending in a newline.
+     *
+     * @author Shane Spoor
+     */
+    public static String describe(Fix fix)
+    {
+        String latStr, longStr;
+
+        latStr  = "Latitude: " + (fix.lat < 0 ? fix.lat * -1 + "\u00B0 S" : fix.lat + "\u00B0 N") + "\n";
+        longStr = "Longitude: " + (fix.lon < 0 ? fix.lon * -1 + "\u00B0 W" : fix.lon + "\u00B0 E") + "\n";
+        return fix.time + "\n" + latStr + longStr;
+    }
+
+    private void put(Object entry)
+    {
+        entries[next] = entry;
+        next = (next + 1) % CAPACITY;
+        if(count < CAPACITY)
+            count++;
+    }
+}
@@ -0,0 +1,319 @@
+package ca.bcit.A00852406;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+
+/**
+ * Chooses which of several servers the client sends its fixes to.
+ *
+ * Every server is probed each {@link #PROBE_PERIOD_MS} with a "PING <i>nanos</i>" datagram, which
+ * the server answers with "PONG <i>nanos</i>"; the echoed time gives the round trip time without the
+ * pool having to remember its probes. A server is up while it has answered within the last
+ * {@link #FAILOVER_MS}. Fixes go to the up server with the lowest smoothed round trip time, or to the
+ * two lowest when duplicating. The servers in use are kept until they go down or another is
+ * markedly faster, so that similar servers don't take turns; until any server has answered, the
+ * first ones listed are used.
+ *
+ * Since the choice is made again on every probe round, a server that stops answering is replaced
+ * at most FAILOVER_MS + PROBE_PERIOD_MS after its last answer. Every {@link #REPORT_ROUNDS} rounds
+ * the pool describes each server's round trip time and loss since the last report.
+ *
+ * The pool is used by the sender thread and the thread reading the answers, so its methods are
+ * synchronized.
+ *
+ * @author Shane Spoor
+ */
+public class ServerPool
+{
+    public  static final String PING            = "PING"; /** Starts a probe datagram; the server echoes what follows. */
+    public  static final String PONG            = "PONG"; /** Starts a server's answer to a probe. */
+    public  static final long   PROBE_PERIOD_MS = 1000;   /** How often every server is probed. */
+    public  static final long   FAILOVER_MS     = 3000;   /** How long after its last answer a server is taken to be down. */
+    public  static final int    REPORT_ROUNDS   = 10;     /** The number of probe rounds between reports. */
+    private static final double RTT_SMOOTHING   = 0.25;   /** The weight of each new round trip time in the smoothed one. */
+    private static final double SWITCH_RATIO    = 0.8;    /** How much of a server's round trip time another must beat to replace it. */
+
+    /**
+     * A server and what's been learnt about it from probing.
+     */
+    public static class Endpoint
+    {
+        public final String host;                   /** The server's host name or address, as entered. */
+        public final int    port;                   /** The server's port. */
+        volatile InetAddress address;               /** The resolved address, or null until the sending session's resolver resolves it. */
+        double              rtt = Double.NaN;       /** The smoothed round trip time in milliseconds, or NaN if it has never answered. */
+        long                lastAnswer;             /** When it last answered, in System.nanoTime() nanoseconds. */
+        boolean             answered;               /** Whether it has ever answered. */
+        int                 probes;                 /** The number of probes sent since the last report. */
+        int                 answers;                /** The number of answers received since the last report. */
+
+        Endpoint(String host, int port)
+        {
+            this.host = host;
+            this.port = port;
+        }
+
+        /**
+         * Returns the endpoint as "host:port".
+         *
+         * @return The endpoint's description.
+         */
+        @Override
+        public String toString()
+        {
+            return (host.indexOf(':') >= 0 ? "[" + host + "]" : host) + ":" + port;
+        }
+    }
+
+    private final Endpoint[]    endpoints;  /** The servers, in the order they were listed. */
+    private final Endpoint[]    inUse;      /** The servers fixes are sent to. */
+    private int                 rounds;     /** The number of probe rounds since the last report. */
+
+    /**
+     * Creates a pool.
+     *
+     * @param endpoints The servers, in order of preference until they've been probed.
+     * @param duplicate True to send every fix to two servers, if there are two.
+     */
+    public ServerPool(ArrayList<Endpoint> endpoints, boolean duplicate)
+    {
+        this.endpoints  = endpoints.toArray(new Endpoint[endpoints.size()]);
+        this.inUse      = new Endpoint[Math.min(duplicate ? 2 : 1, this.endpoints.length)];
+        System.arraycopy(this.endpoints, 0, inUse, 0, inUse.length);
+    }
+
+    /**
+     * Reads a list of servers separated by commas or whitespace. Each is a host name or address,
+     * optionally followed by ":port"; IPv6 addresses with a port are written in brackets.
+     *
+     * @param list        The list.
+     * @param defaultPort The port of servers listed without one, or -1 if each must have its own.
+     * @return The servers, in order.
+     * @throws IllegalArgumentException If the list is empty or a server or port can't be read.
+     *
+     * @author Shane Spoor
+     */
+    public static ArrayList<Endpoint> parse(String list, int defaultPort)
+    {
+        ArrayList<Endpoint> servers = new ArrayList<Endpoint>();
+        for(String entry : list.trim().split("[,\\s]+"))
+        {
+            if(entry.length() == 0)
+                continue;
+
+            String host = entry;
+            int    port = defaultPort;
+            int    colon = entry.lastIndexOf(':');
+            if(entry.startsWith("["))
+            {
+                int close = entry.indexOf(']');
+                if(close < 0)
+                    throw new IllegalArgumentException(entry + " is missing a ']'");
+                host = entry.substring(1, close);
+                if(close + 1 < entry.length())
+                    port = parsePort(entry, entry.substring(close + 1));
+            }
+            else if(colon >= 0 && colon == entry.indexOf(':'))
+            {
+                host = entry.substring(0, colon);
+                port = parsePort(entry, entry.substring(colon));
+            }
+
+            if(host.length() == 0)
+                throw new IllegalArgumentException(entry + " has no host");
+            if(port < 0)
+                throw new IllegalArgumentException(entry + " has no port");
+            if(port == 0 || port > 65535)
+                throw new IllegalArgumentException(entry + " has an invalid port");
+            servers.add(new Endpoint(host, port));
+        }
+        if(servers.isEmpty())
+            throw new IllegalArgumentException("No servers");
+        return servers;
+    }
+
+    /**
+     * Reads the ":port" that follows a host.
+     */
+    private static int parsePort(String entry, String suffix)
+    {
+        try
+        {
+            if(!suffix.startsWith(":"))
+                throw new NumberFormatException();
+            int port = Integer.parseInt(suffix.substring(1));
+            if(port < 1 || port > 65535)
+                throw new NumberFormatException();
+            return port;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(entry + " has an invalid port");
+        }
+    }
+
+    /**
+     * Returns every server, for probing.
+     *
+     * @return The servers, in the order they were listed.
+     */
+    public Endpoint[] getEndpoints()
+    {
+        return endpoints;
+    }
+
+    /**
+     * Returns the servers fixes are currently sent to.
+     *
+     * @return A copy of the servers in use.
+     */
+    public synchronized Endpoint[] getTargets()
+    {
+        return inUse.clone();
+    }
+
+    /**
+     * Builds a probe datagram's payload.
+     *
+     * @param now The current System.nanoTime().
+     * @return The payload.
+     */
+    public static String probe(long now)
+    {
+        return PING + " " + now;
+    }
+
+    /**
+     * Records that a server has been probed.
+     *
+     * @param e The server.
+     */
+    public synchronized void onProbeSent(Endpoint e)
+    {
+        e.probes++;
+    }
+
+    /**
+     * Records a datagram received on the client's socket if it's an answer to a probe from one of
+     * the servers.
+     *
+     * @param text The datagram's payload.
+     * @param addr The address it came from.
+     * @param port The port it came from.
+     * @param now  The current System.nanoTime().
+     *
+     * @author Shane Spoor
+     */
+    public synchronized void onAnswer(String text, InetAddress addr, int port, long now)
+    {
+        if(!text.startsWith(PONG))
+            return;
+        long sent;
+        try
+        {
+            sent = Long.parseLong(text.substring(PONG.length()).trim());
+        } catch (NumberFormatException e) {
+            return;
+        }
+        double rtt = (now - sent) / 1e6;
+        if(rtt < 0 || rtt > FAILOVER_MS)
+            return;
+
+        for(Endpoint e : endpoints)
+        {
+            if(e.port != port || !addr.equals(e.address))
+                continue;
+            e.rtt        = e.answered ? e.rtt + RTT_SMOOTHING * (rtt - e.rtt) : rtt;
+            e.lastAnswer = now;
+            e.answered   = true;
+            e.answers++;
+        }
+    }
+
+    /**
+     * Chooses the servers to send to again, replacing any that are down or that an unused server
+     * beats by a clear margin.
+     *
+     * @param now The current System.nanoTime().
+     * @return A message saying which servers are now in use and why, or null if nothing changed.
+     *
+     * @author Shane Spoor
+     */
+    public synchronized String select(long now)
+    {
+        StringBuilder why = null;
+        for(int slot = 0; slot < inUse.length; slot++)
+        {
+            Endpoint current = inUse[slot];
+            Endpoint best    = null;
+            for(Endpoint e : endpoints)
+                if(isUp(e, now) && !isInUse(e) && (best == null || e.rtt < best.rtt))
+                    best = e;
+            if(best == null)
+                continue;
+
+            boolean down = !isUp(current, now);
+            if(!down && !(best.rtt < current.rtt * SWITCH_RATIO))
+                continue;
+            inUse[slot] = best;
+            if(why == null)
+                why = new StringBuilder();
+            why.append(why.length() == 0 ? " (" : ", ").append(current)
+               .append(down ? (current.answered ? " stopped answering" : " not answering") : " slower");
+        }
+        if(why == null)
+            return null;
+
+        StringBuilder message = new StringBuilder("Sending to ");
+        for(int i = 0; i < inUse.length; i++)
+            message.append(i == 0 ? "" : " and ").append(inUse[i]);
+        return message.append(why).append(")\n").toString();
+    }
+
+    /**
+     * Counts a finished probe round and, every REPORT_ROUNDS rounds, describes each server's round
+     * trip time and loss since the last report.
+     *
+     * @return The report, one line per server, or null if none is due.
+     *
+     * @author Shane Spoor
+     */
+    public synchronized String endRound()
+    {
+        if(++rounds < REPORT_ROUNDS)
+            return null;
+        rounds = 0;
+
+        StringBuilder report = new StringBuilder();
+        for(Endpoint e : endpoints)
+        {
+            int loss = e.probes == 0 ? 0 : Math.max(0, 100 - e.answers * 100 / e.probes);
+            report.append(e).append(": ");
+            if(Double.isNaN(e.rtt))
+                report.append("no answer");
+            else
+                report.append("rtt ").append(Math.round(e.rtt * 10) / 10.0).append(" ms, ").append(loss).append("% loss");
+            report.append(isInUse(e) ? " (in use)\n" : "\n");
+            e.probes  = 0;
+            e.answers = 0;
+        }
+        return report.toString();
+    }
+
+    /**
+     * Returns whether a server has answered recently enough to be sent to.
+     */
+    private static boolean isUp(Endpoint e, long now)
+    {
+        return e.answered && now - e.lastAnswer <= FAILOVER_MS * 1000000;
+    }
+
+    /**
+     * Returns whether fixes are sent to a server.
+     */
+    private boolean isInUse(Endpoint e)
+    {
+        for(Endpoint used : inUse)
+            if(used == e)
+                return true;
+        return false;
+    }
+}
@@ -0,0 +1,268 @@
+package ca.bcit.A00852406;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.List;
+
+/**
+ * Saves the server's state to a compact binary file and restores it, so that the received tracks
+ * survive the process being killed.
+ *
+ * The file holds the port the server was listening on, the clients seen, the fixes in the store, the
+ * limiter's per-client counters and the log. Fixes are written as whole columns of primitives rather
+ * than one record per fix, so on restore each column is copied from a memory-mapped view of the file
+ * straight into the store's arrays without parsing anything. Everything is little-endian, which is the
+ * native order of every device the app runs on.
+ * <pre>
+ * int    MAGIC, VERSION
+ * long   time saved
+ * int    server port
+ * int    client count, then for each client: int key, string address
+ * int    fix count, then the columns: int[] client index, double[] lat, double[] lon,
+ *        long[] time taken, long[] time received
+ * int    counter count, then for each client: int key, string address, long accepted, long dropped
+ * int    log entry count, then each entry as a string
+ * </pre>
+ * Strings are an int byte count followed by UTF-8.
+ *
+ * @author Shane Spoor
+ */
+public class ServerStateFile
+{
+    private static final int        MAGIC       = 0x53525653;   /** Identifies a state file ("SVRS"). */
+    private static final int        VERSION     = 1;            /** The version of the format written. */
+    private static final int        BUFFER_SIZE = 64 * 1024;    /** The size of the write buffer. */
+    private static final Charset    UTF8        = Charset.forName("UTF-8");
+
+    private final FileChannel   channel;    /** The file being written. */
+    private final ByteBuffer    buf;        /** Buffers the output. */
+
+    private ServerStateFile(FileChannel channel)
+    {
+        this.channel    = channel;
+        this.buf        = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Writes the server's state.
+     *
+     * The file is written under a temporary name and then renamed over the old one, so a crash part
+     * of the way through leaves the previous state intact.
+     *
+     * @param file       The file to write.
+     * @param serverPort The port the server was listening on.
+     * @param fixes      The fixes to save.
+     * @param counters   The limiter's per-client counters, most recently seen client first; they're
+     *                   written oldest first so that restoring them rebuilds the same order.
+     * @param log        The log entries, oldest first.
+     * @throws IOException If the file can't be written.
+     *
+     * @author Shane Spoor
+     */
+    public static void save(File file, int serverPort, FixStore.Snapshot fixes,
+                            List<IngestLimiter.ClientStats> counters, String[] log) throws IOException
+    {
+        File             tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmp);
+        try
+        {
+            ServerStateFile w = new ServerStateFile(out.getChannel());
+            w.putInt(MAGIC);
+            w.putInt(VERSION);
+            w.putLong(System.currentTimeMillis());
+            w.putInt(serverPort);
+
+            w.putInt(fixes.clientCount());
+            for(int k = 0; k < fixes.clientCount(); k++)
+            {
+                w.putInt(fixes.clientKey(k));
+                w.putString(fixes.clientAddr(k));
+            }
+
+            long start = fixes.start(), end = fixes.end();
+            w.putInt((int)(end - start));
+            for(long seq = start; seq < end; seq++)
+                w.putInt(fixes.client(seq));
+            for(long seq = start; seq < end; seq++)
+                w.putDouble(fixes.lat(seq));
+            for(long seq = start; seq < end; seq++)
+                w.putDouble(fixes.lon(seq));
+            for(long seq = start; seq < end; seq++)
+                w.putLong(fixes.time(seq));
+            for(long seq = start; seq < end; seq++)
+                w.putLong(fixes.recvTime(seq));
+
+            w.putInt(counters.size());
+            for(int i = counters.size() - 1; i >= 0; i--)
+            {
+                IngestLimiter.ClientStats stats = counters.get(i);
+                w.putInt(stats.clientKey);
+                w.putString(stats.clientAddr);
+                w.putLong(stats.accepted);
+                w.putLong(stats.dropped);
+            }
+
+            w.putInt(log.length);
+            for(String line : log)
+                w.putString(line);
+            w.flush();
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if(!tmp.renameTo(file))
+        {
+            tmp.delete();
+            throw new IOException("Couldn't replace " + file.getName());
+        }
+    }
+
+    /**
+     * Reads a state file into the server's state, replacing what was there.
+     *
+     * @param file    The file to read.
+     * @param store   Receives the fixes.
+     * @param limiter Receives the per-client counters.
+     * @param log     Receives the log entries.
+     * @return The port the server was listening on.
+     * @throws IOException If the file can't be read or isn't a valid state file; the store is left
+     *                     empty.
+     *
+     * @author Shane Spoor
+     */
+    public static int restore(File file, FixStore store, IngestLimiter limiter, ServerLog log) throws IOException
+    {
+        FileInputStream in = new FileInputStream(file);
+        try
+        {
+            FileChannel ch  = in.getChannel();
+            ByteBuffer  buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size()).order(ByteOrder.LITTLE_ENDIAN);
+            if(buf.getInt() != MAGIC || buf.getInt() != VERSION)
+                throw new IOException(file.getName() + " isn't a server state file");
+            buf.getLong();
+            int serverPort = buf.getInt();
+
+            int      clients = count(buf, 8);
+            int[]    keys    = new int[clients];
+            String[] addrs   = new String[clients];
+            for(int k = 0; k < clients; k++)
+            {
+                keys[k]  = buf.getInt();
+                addrs[k] = getString(buf);
+            }
+
+            int n = count(buf, 36);
+            store.restore(addrs, keys, column(buf, 4 * n).asIntBuffer(),
+                          column(buf, 8 * n).asDoubleBuffer(), column(buf, 8 * n).asDoubleBuffer(),
+                          column(buf, 8 * n).asLongBuffer(), column(buf, 8 * n).asLongBuffer());
+
+            int  counters = count(buf, 24);
+            long now      = System.currentTimeMillis();
+            limiter.clear();
+            for(int i = 0; i < counters; i++)
+            {
+                int    key  = buf.getInt();
+                String addr = getString(buf);
+                limiter.restore(new IngestLimiter.ClientStats(key, addr, buf.getLong(), buf.getLong()), now);
+            }
+
+            String[] lines = new String[count(buf, 4)];
+            for(int i = 0; i < lines.length; i++)
+                lines[i] = getString(buf);
+            log.restore(lines);
+            return serverPort;
+        } catch (BufferUnderflowException e) {
+            store.clear();
+            throw new IOException(file.getName() + " is truncated");
+        } catch (IllegalArgumentException e) {
+            store.clear();
+            throw new IOException(file.getName() + " is corrupt: " + e.getMessage());
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Reads a count and checks that the buffer could hold that many items of at least the given size.
+     */
+    private static int count(ByteBuffer buf, int minItemSize)
+    {
+        int n = buf.getInt();
+        if(n < 0 || (long)n * minItemSize > buf.remaining())
+            throw new IllegalArgumentException("bad count " + n);
+        return n;
+    }
+
+    /**
+     * Returns a little-endian view of the next <i>bytes</i> bytes of a buffer and skips past them.
+     */
+    private static ByteBuffer column(ByteBuffer buf, int bytes)
+    {
+        ByteBuffer col = buf.slice().order(ByteOrder.LITTLE_ENDIAN);
+        col.limit(bytes);
+        buf.position(buf.position() + bytes);
+        return col;
+    }
+
+    private static String getString(ByteBuffer buf)
+    {
+        byte[] bytes = new byte[count(buf, 1)];
+        buf.get(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    private void putInt(int v) throws IOException
+    {
+        ensure(4);
+        buf.putInt(v);
+    }
+
+    private void putLong(long v) throws IOException
+    {
+        ensure(8);
+        buf.putLong(v);
+    }
+
+    private void putDouble(double v) throws IOException
+    {
+        ensure(8);
+        buf.putDouble(v);
+    }
+
+    private void putString(String s) throws IOException
+    {
+        byte[] bytes = s.getBytes(UTF8);
+        putInt(bytes.length);
+        for(int off = 0; off < bytes.length; )
+        {
+            ensure(1);
+            int len = Math.min(buf.remaining(), bytes.length - off);
+            buf.put(bytes, off, len);
+            off += len;
+        }
+    }
+
+    /**
+     * Makes room for <i>n</i> bytes in the buffer, writing it out if necessary.
+     */
+    private void ensure(int n) throws IOException
+    {
+        if(buf.remaining() < n)
+            flush();
+    }
+
+    private void flush() throws IOException
+    {
+        buf.flip();
+        while(buf.hasRemaining())
+            channel.write(buf);
+        buf.clear();
+    }
+}
@@ -0,0 +1,430 @@
+package ca.bcit.A00852406;
+
+import android.util.SparseArray;
+
+import ca.bcit.A00852406.util.RTree;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rebroadcasts the fixes received by the server to subscribed viewers.
+ *
+ * A viewer subscribes by sending a datagram to the server's port of the form
+ * "SUB <i>minLat minLon maxLat maxLon maxRate [cookie]</i>", where <i>maxRate</i> is the maximum
+ * number of update datagrams per second it wants to receive. Every well-formed SUB is answered with
+ * "SUBOK <i>cookie</i>", but only a SUB that echoes a cookie the server issued to the same address
+ * and port starts or renews a subscription; so a viewer sends its first SUB without a cookie and
+ * then echoes the latest cookie it was given. Since the cookie only reaches whoever really holds the
+ * source address, a spoofed SUB can't make the server stream updates to someone else. Cookies are
+ * derived from a secret and the time, so nothing is stored for unconfirmed requests, and they stay
+ * valid for between one and two {@link #LEASE_MS}. A viewer unsubscribes with "UNSUB <i>cookie</i>".
+ *
+ * Malformed requests are dropped without an answer, and no answer is ever longer than the request
+ * it answers, so the server can't be used to amplify traffic. The receiver also limits the rate of
+ * control datagrams from each source (see {@link ControlLimiter}).
+ *
+ * Subscriptions are leases: a viewer must resend its SUB at least every {@link #LEASE_MS}
+ * milliseconds or it's dropped.
+ *
+ * Subscriptions are kept in an R-tree keyed on their bounding boxes, so each fix is matched against
+ * only the subscriptions whose boxes contain it. Matching fixes are coalesced per subscriber (only
+ * the latest fix from each client is kept) and a separate thread flushes them at each subscriber's
+ * rate, packing as many "<i>client lat lon time</i>" lines into each datagram as will fit.
+ *
+ * @author Shane Spoor
+ */
+public class SubscriberFanOut implements FixListener
+{
+    public  static final long   LEASE_MS        = 60000; /** How long a subscription lasts without being renewed. */
+    private static final long   FLUSH_PERIOD_MS = 20;    /** How often the flush thread looks for due subscribers. */
+    private static final int    MAX_PAYLOAD     = 1024;  /** The largest datagram payload sent to a subscriber. */
+    private static final double MAX_RATE_HZ     = 50;    /** The highest update rate a subscriber may ask for. */
+    private static final int    MAX_SUBSCRIBERS = 1024;  /** The maximum number of concurrent subscriptions. */
+    private static final int    COOKIE_BYTES    = 4;     /** The length of a cookie before it's written in hex. */
+
+    /**
+     * A single viewer's subscription and its pending updates.
+     */
+    private static class Subscriber
+    {
+        final InetAddress       addr;                           /** The viewer's address. */
+        final int               port;                           /** The viewer's port. */
+        final String            endpoint;                       /** "address:port", used as the subscription's key. */
+        double                  minLat, minLon, maxLat, maxLon; /** The subscribed area. */
+        long                    intervalMs;                     /** The minimum time between two datagrams. */
+        long                    nextFlush;                      /** The earliest time at which the next datagram may be sent. */
+        long                    lastSeen;                       /** The last time the viewer renewed its subscription. */
+        final SparseArray<Fix>  pending = new SparseArray<Fix>(); /** The latest unsent fix from each client, keyed by client. */
+
+        Subscriber(InetAddress addr, int port, String endpoint)
+        {
+            this.addr       = addr;
+            this.port       = port;
+            this.endpoint   = endpoint;
+        }
+    }
+
+    private final RTree<Subscriber>             index       = new RTree<Subscriber>();            /** The subscriptions indexed by area. */
+    private final HashMap<String, Subscriber>   byEndpoint  = new HashMap<String, Subscriber>();  /** The subscriptions keyed by endpoint. */
+    private final ArrayList<Subscriber>         subscribers = new ArrayList<Subscriber>();        /** Every subscription, for the flush thread. */
+    private final StringBuilder                 batch       = new StringBuilder(MAX_PAYLOAD);     /** The datagram being packed by the flush thread. */
+    private ScheduledExecutorService            flusher;                                          /** Runs the flush loop. */
+    private volatile DatagramSocket             udpSock;                                          /** The socket on which updates are sent. */
+    private long                                sent;                                             /** The number of update datagrams sent. */
+    private final byte[]                        secret      = new byte[16];                       /** The key cookies are derived with. */
+    private final MessageDigest                 digest;                                           /** Derives cookies; only used on the receiving thread. */
+
+    /**
+     * Creates a fan-out with a fresh cookie secret.
+     */
+    public SubscriberFanOut()
+    {
+        new SecureRandom().nextBytes(secret);
+        try
+        {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Adds each fix to the pending batch of every subscriber whose area contains it.
+     * Called once per fix on the receiving thread; never reused across threads.
+     */
+    private final RTree.Visitor<Subscriber> matcher = new RTree.Visitor<Subscriber>()
+    {
+        public void visit(Subscriber sub)
+        {
+            synchronized(sub)
+            {
+                sub.pending.put(current.clientKey, current);
+            }
+        }
+    };
+    private Fix current; /** The fix currently being matched. */
+
+    /**
+     * Starts flushing updates on the given socket.
+     *
+     * The socket is normally the one the server receives fixes on, so viewers see updates coming
+     * from the port they subscribed to. If the fan-out is already running, it switches to the new
+     * socket.
+     *
+     * @param sock The socket on which to send updates.
+     *
+     * @author Shane Spoor
+     */
+    public synchronized void start(DatagramSocket sock)
+    {
+        udpSock = sock;
+        if(flusher != null)
+            return;
+        flusher = Executors.newSingleThreadScheduledExecutor();
+        flusher.scheduleAtFixedRate(new Runnable()
+        {
+            public void run()
+            {
+                flush(System.currentTimeMillis());
+            }
+        }, FLUSH_PERIOD_MS, FLUSH_PERIOD_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the flush thread and forgets every subscription.
+     *
+     * Does nothing if the fan-out has since been started on another socket, so a receiver that is
+     * shutting down can't stop the fan-out out from under its replacement.
+     *
+     * @param sock The socket the fan-out was started with.
+     *
+     * @author Shane Spoor
+     */
+    public synchronized void stop(DatagramSocket sock)
+    {
+        if(sock != udpSock)
+            return;
+        if(flusher != null)
+            flusher.shutdownNow();
+        flusher = null;
+        udpSock = null;
+        synchronized(index)
+        {
+            index.clear();
+            byEndpoint.clear();
+            subscribers.clear();
+        }
+    }
+
+    /**
+     * Returns whether a datagram is a subscription message, to be handled by {@link #handleControl}
+     * rather than decoded as a fix.
+     *
+     * @param text The datagram's payload.
+     * @return True if the datagram is a SUB or UNSUB.
+     */
+    public static boolean isControl(String text)
+    {
+        return text.startsWith("SUB") || text.startsWith("UNSUB");
+    }
+
+    /**
+     * Handles a subscription message. Called on the receiving thread.
+     *
+     * @param text The datagram's payload, which {@link #isControl} accepted.
+     * @param addr The address from which it was received.
+     * @param port The port from which it was received.
+     *
+     * @author Shane Spoor
+     */
+    public void handleControl(String text, InetAddress addr, int port)
+    {
+        String[] parts = text.trim().split("\\s+");
+        long     now   = System.currentTimeMillis();
+        if(parts[0].equals("UNSUB"))
+        {
+            if(parts.length == 2 && isValidCookie(parts[1], addr, port, now))
+            {
+                unsubscribe(addr.getHostAddress() + ":" + port);
+                reply("UNSUBOK\n", addr, port, text.length());
+            }
+            return;
+        }
+        if(!parts[0].equals("SUB") || (parts.length != 6 && parts.length != 7))
+            return;
+
+        double minLat, minLon, maxLat, maxLon, rate;
+        try
+        {
+            minLat = Double.parseDouble(parts[1]);
+            minLon = Double.parseDouble(parts[2]);
+            maxLat = Double.parseDouble(parts[3]);
+            maxLon = Double.parseDouble(parts[4]);
+            rate   = Math.min(Double.parseDouble(parts[5]), MAX_RATE_HZ);
+        } catch (NumberFormatException e) {
+            return;
+        }
+        if(!(minLat <= maxLat) || !(minLon <= maxLon) || !(rate > 0))
+            return;
+
+        if(parts.length == 7 && isValidCookie(parts[6], addr, port, now)
+           && !subscribe(addr, port, minLat, minLon, maxLat, maxLon, (long)(1000 / rate)))
+            reply("SUBERR full\n", addr, port, text.length());
+        else
+            reply("SUBOK " + cookie(addr, port, now / LEASE_MS) + "\n", addr, port, text.length());
+    }
+
+    /**
+     * Returns whether a cookie is one issued to an endpoint in this lease period or the last.
+     */
+    private boolean isValidCookie(String cookie, InetAddress addr, int port, long now)
+    {
+        long period = now / LEASE_MS;
+        return cookie.equals(cookie(addr, port, period)) || cookie.equals(cookie(addr, port, period - 1));
+    }
+
+    /**
+     * Derives the cookie for an endpoint in a lease period from the secret, in hex.
+     */
+    private String cookie(InetAddress addr, int port, long period)
+    {
+        digest.reset();
+        digest.update(secret);
+        digest.update(addr.getAddress());
+        for(int shift = 56; shift >= 0; shift -= 8)
+            digest.update((byte)(period >>> shift));
+        digest.update((byte)(port >>> 8));
+        digest.update((byte)port);
+        byte[]        hash = digest.digest();
+        StringBuilder hex  = new StringBuilder(COOKIE_BYTES * 2);
+        for(int i = 0; i < COOKIE_BYTES; i++)
+            hex.append(Character.forDigit((hash[i] >> 4) & 0xF, 16)).append(Character.forDigit(hash[i] & 0xF, 16));
+        return hex.toString();
+    }
+
+    /**
+     * Queues a fix for every subscriber whose area contains it.
+     *
+     * @param fix The fix to rebroadcast.
+     *
+     * @author Shane Spoor
+     */
+    public void onFix(Fix fix)
+    {
+        synchronized(index)
+        {
+            current = fix;
+            index.search(fix.lon, fix.lat, matcher);
+            current = null;
+        }
+    }
+
+    /**
+     * Returns the number of active subscriptions.
+     *
+     * @return The number of active subscriptions.
+     */
+    public int getSubscriberCount()
+    {
+        synchronized(index)
+        {
+            return subscribers.size();
+        }
+    }
+
+    /**
+     * Returns the number of update datagrams sent so far.
+     *
+     * @return The number of update datagrams sent so far.
+     */
+    public synchronized long getDatagramsSent()
+    {
+        return sent;
+    }
+
+    /**
+     * Adds or renews a subscription. A renewal may change the area and rate.
+     *
+     * @return False if the subscription is new and there's no room for it.
+     */
+    private boolean subscribe(InetAddress addr, int port, double minLat, double minLon, double maxLat, double maxLon, long intervalMs)
+    {
+        String endpoint = addr.getHostAddress() + ":" + port;
+        synchronized(index)
+        {
+            Subscriber sub = byEndpoint.get(endpoint);
+            if(sub == null)
+            {
+                if(subscribers.size() >= MAX_SUBSCRIBERS)
+                    return false;
+                sub = new Subscriber(addr, port, endpoint);
+                byEndpoint.put(endpoint, sub);
+                subscribers.add(sub);
+            }
+            else
+                index.remove(sub.minLon, sub.minLat, sub.maxLon, sub.maxLat, sub);
+
+            synchronized(sub)
+            {
+                sub.minLat      = minLat;
+                sub.minLon      = minLon;
+                sub.maxLat      = maxLat;
+                sub.maxLon      = maxLon;
+                sub.intervalMs  = intervalMs;
+                sub.lastSeen    = System.currentTimeMillis();
+            }
+            index.insert(minLon, minLat, maxLon, maxLat, sub);
+        }
+        return true;
+    }
+
+    /**
+     * Removes the subscription for an endpoint, if there is one.
+     */
+    private void unsubscribe(String endpoint)
+    {
+        synchronized(index)
+        {
+            Subscriber sub = byEndpoint.remove(endpoint);
+            if(sub == null)
+                return;
+            index.remove(sub.minLon, sub.minLat, sub.maxLon, sub.maxLat, sub);
+            subscribers.remove(sub);
+        }
+    }
+
+    /**
+     * Sends every due subscriber its pending updates and drops expired subscriptions.
+     * Runs on the flush thread.
+     */
+    private void flush(long now)
+    {
+        Subscriber[] snapshot;
+        synchronized(index)
+        {
+            snapshot = subscribers.toArray(new Subscriber[subscribers.size()]);
+        }
+
+        for(Subscriber sub : snapshot)
+        {
+            if(now - sub.lastSeen > LEASE_MS)
+            {
+                unsubscribe(sub.endpoint);
+                continue;
+            }
+
+            synchronized(sub)
+            {
+                if(now < sub.nextFlush || sub.pending.size() == 0)
+                    continue;
+                sub.nextFlush = now + sub.intervalMs;
+
+                batch.setLength(0);
+                for(int i = 0; i < sub.pending.size(); i++)
+                {
+                    Fix    fix  = sub.pending.valueAt(i);
+                    String line = fix.clientAddr + " " + fix.lat + " " + fix.lon + " " + fix.time + "\n";
+                    if(batch.length() + line.length() > MAX_PAYLOAD)
+                        send(batch, sub.addr, sub.port);
+                    batch.append(line);
+                }
+                send(batch, sub.addr, sub.port);
+                sub.pending.clear();
+            }
+        }
+    }
+
+    /**
+     * Sends the packed batch to a subscriber and empties it.
+     */
+    private void send(StringBuilder payload, InetAddress addr, int port)
+    {
+        if(payload.length() == 0)
+            return;
+        reply(payload.toString(), addr, port);
+        payload.setLength(0);
+        synchronized(this)
+        {
+            sent++;
+        }
+    }
+
+    /**
+     * Answers a control message, unless the answer would be longer than the message; requests too
+     * short to be answered without amplification are dropped.
+     */
+    private void reply(String text, InetAddress addr, int port, int requestLength)
+    {
+        if(text.length() <= requestLength)
+            reply(text, addr, port);
+    }
+
+    /**
+     * Sends a single datagram, ignoring failures; a viewer that can't be reached will simply let its
+     * lease expire.
+     */
+    private void reply(String text, InetAddress addr, int port)
+    {
+        DatagramSocket sock = udpSock;
+        if(sock == null)
+            return;
+        byte[] bytes = text.getBytes();
+        try
+        {
+            sock.send(new DatagramPacket(bytes, bytes.length, addr, port));
+        } catch (IOException e) {
+            // Dropped, like any other UDP datagram.
+        }
+    }
+}
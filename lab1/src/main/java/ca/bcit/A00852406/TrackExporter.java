@@ -0,0 +1,249 @@
+package ca.bcit.A00852406;
+
+import ca.bcit.A00852406.util.AsciiChannelWriter;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Writes the tracks held in a {@link FixStore} out as GPX or GeoJSON.
+ *
+ * Output is generated incrementally, one fix at a time, through an {@link AsciiChannelWriter}, so an
+ * export uses the same small amount of memory however many fixes it covers. Each client's track is
+ * found by following the store's per-client links, starting from the first chunk whose fixes can fall
+ * within the time range and stopping after the last, so the cost of an export depends on the number
+ * of fixes from the chosen clients in that span rather than on the size of the whole store.
+ *
+ * Both formats contain one track per client, named after the client's address. GeoJSON tracks are
+ * LineString features (a Point for a client with a single fix) whose "coordTimes" property holds the
+ * time of each position.
+ *
+ * @author Shane Spoor
+ */
+public class TrackExporter
+{
+    public static final int FORMAT_GPX      = 0; /** GPX 1.1. */
+    public static final int FORMAT_GEOJSON  = 1; /** GeoJSON (RFC 7946). */
+
+    private static final int DECIMALS = 7;       /** Decimal places written for coordinates (about 1 cm). */
+
+    private final FixStore.Snapshot snap;                                   /** The fixes to export. */
+    private final int[]             clientKeys;                             /** The keys of the clients to export, sorted, or null for all. */
+    private final long              from;                                   /** The earliest fix time to export. */
+    private final long              to;                                     /** The latest fix time to export. */
+    private final StringBuilder     time    = new StringBuilder(24);        /** Scratch space for formatting times. */
+    private AsciiChannelWriter      out;                                    /** The destination. */
+    private long[]                  entry;                                  /** Each client's first fix in the span searched, or -1. */
+    private long                    hi;                                     /** One past the last sequence number searched. */
+    private long                    points;                                 /** The number of fixes written. */
+
+    /**
+     * Creates an exporter for a selection of fixes.
+     *
+     * @param snap       The fixes to export.
+     * @param clientKeys The keys of the clients to export, or null for every client.
+     * @param from       The earliest fix time to export, in milliseconds since the epoch.
+     * @param to         The latest fix time to export, in milliseconds since the epoch.
+     */
+    public TrackExporter(FixStore.Snapshot snap, int[] clientKeys, long from, long to)
+    {
+        this.snap       = snap;
+        this.from       = from;
+        this.to         = to;
+        if(clientKeys != null)
+        {
+            this.clientKeys = clientKeys.clone();
+            Arrays.sort(this.clientKeys);
+        }
+        else
+            this.clientKeys = null;
+    }
+
+    /**
+     * Writes the selected fixes to a file, replacing its contents.
+     *
+     * @param format One of the FORMAT_ constants.
+     * @param file   The file to write.
+     * @return The number of fixes written.
+     * @throws IOException If the file can't be written.
+     *
+     * @author Shane Spoor
+     */
+    public long export(int format, File file) throws IOException
+    {
+        points = 0;
+        findSpan();
+        out    = new AsciiChannelWriter(new FileOutputStream(file).getChannel());
+        try
+        {
+            if(format == FORMAT_GPX)
+                writeGpx();
+            else
+                writeGeoJson();
+        } finally {
+            out.close();
+            out = null;
+        }
+        return points;
+    }
+
+    /**
+     * Returns whether fixes within the time range had already been dropped from the store to stay
+     * within its capacity, so the export is missing the start of some tracks.
+     *
+     * @return True if the export may be incomplete.
+     *
+     * @author Shane Spoor
+     */
+    public boolean isTruncated()
+    {
+        return snap.droppedOverlaps(from, to);
+    }
+
+    /**
+     * Finds the span of chunks that can hold fixes within the time range, and each client's first fix
+     * in it, so the chunks before and after are never walked.
+     */
+    private void findSpan()
+    {
+        long start = snap.start();
+        long end   = snap.end();
+        long lo    = end;
+        hi = start;
+        for(long seq = start; seq < end; seq = FixStore.Snapshot.nextChunk(seq))
+        {
+            if(!snap.chunkOverlaps(seq, from, to))
+                continue;
+            if(lo == end)
+                lo = seq;
+            hi = Math.min(end, FixStore.Snapshot.nextChunk(seq));
+        }
+
+        entry = new long[snap.clientCount()];
+        if(lo == start)
+        {
+            for(int client = 0; client < entry.length; client++)
+                entry[client] = snap.firstOf(client);
+            return;
+        }
+        Arrays.fill(entry, -1);
+        for(long seq = lo; seq < hi; seq++)
+        {
+            int client = snap.client(seq);
+            if(entry[client] < 0)
+                entry[client] = seq;
+        }
+    }
+
+    /**
+     * Writes a GPX document with one track per client.
+     */
+    private void writeGpx() throws IOException
+    {
+        out.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n")
+           .append("<gpx version=\"1.1\" creator=\"Traceroute\" xmlns=\"http://www.topografix.com/GPX/1/1\">\n");
+
+        for(int client = 0; client < snap.clientCount(); client++)
+        {
+            if(!selected(client))
+                continue;
+
+            boolean open = false;
+            for(long seq = entry[client]; seq >= 0 && seq < hi; seq = snap.nextOf(seq))
+            {
+                long t = snap.time(seq);
+                if(t < from || t > to)
+                    continue;
+                if(!open)
+                {
+                    out.append("<trk><name>").append(snap.clientAddr(client)).append("</name><trkseg>\n");
+                    open = true;
+                }
+                out.append("<trkpt lat=\"").appendFixed(snap.lat(seq), DECIMALS)
+                   .append("\" lon=\"").appendFixed(snap.lon(seq), DECIMALS)
+                   .append("\"><time>").append(iso(t)).append("</time></trkpt>\n");
+                points++;
+            }
+            if(open)
+                out.append("</trkseg></trk>\n");
+        }
+        out.append("</gpx>\n");
+    }
+
+    /**
+     * Writes a GeoJSON feature collection with one feature per client.
+     *
+     * Each feature takes two passes over the client's fixes: one for the times in the properties and
+     * one for the coordinates in the geometry.
+     */
+    private void writeGeoJson() throws IOException
+    {
+        out.append("{\"type\":\"FeatureCollection\",\"features\":[");
+
+        boolean firstFeature = true;
+        for(int client = 0; client < snap.clientCount(); client++)
+        {
+            if(!selected(client))
+                continue;
+
+            int count = 0;
+            for(long seq = entry[client]; seq >= 0 && seq < hi; seq = snap.nextOf(seq))
+            {
+                long t = snap.time(seq);
+                if(t < from || t > to)
+                    continue;
+                if(count == 0)
+                {
+                    out.append(firstFeature ? "\n" : ",\n")
+                       .append("{\"type\":\"Feature\",\"properties\":{\"client\":\"").append(snap.clientAddr(client))
+                       .append("\",\"coordTimes\":[");
+                    firstFeature = false;
+                }
+                else
+                    out.append(',');
+                out.append('"').append(iso(t)).append('"');
+                count++;
+            }
+            if(count == 0)
+                continue;
+
+            out.append("]},\"geometry\":{\"type\":\"").append(count == 1 ? "Point" : "LineString")
+               .append("\",\"coordinates\":").append(count == 1 ? "" : "[");
+            boolean firstPoint = true;
+            for(long seq = entry[client]; seq >= 0 && seq < hi; seq = snap.nextOf(seq))
+            {
+                long t = snap.time(seq);
+                if(t < from || t > to)
+                    continue;
+                if(!firstPoint)
+                    out.append(',');
+                out.append('[').appendFixed(snap.lon(seq), DECIMALS)
+                   .append(',').appendFixed(snap.lat(seq), DECIMALS).append(']');
+                firstPoint = false;
+            }
+            out.append(count == 1 ? "}}" : "]}}");
+            points += count;
+        }
+        out.append("\n]}\n");
+    }
+
+    /**
+     * Returns whether a client is part of the export.
+     */
+    private boolean selected(int client)
+    {
+        return clientKeys == null || Arrays.binarySearch(clientKeys, snap.clientKey(client)) >= 0;
+    }
+
+    /**
+     * Formats a time in the scratch builder and returns it.
+     */
+    private CharSequence iso(long millis)
+    {
+        time.setLength(0);
+        Fix.appendIsoTime(time, millis, true);
+        return time;
+    }
+}
@@ -0,0 +1,127 @@
+package ca.bcit.A00852406;
+
+import android.location.Location;
+import android.location.LocationListener;
+import android.os.Handler;
+import android.os.SystemClock;
+
+/**
+ * Feeds a recorded track to a LocationListener in place of a real location provider, so that runs
+ * can be repeated at a chosen rate.
+ *
+ * The points are delivered on the handler's thread with the spacing they were recorded with, divided
+ * by the speed; a speed of {@link #AS_FAST_AS_POSSIBLE} delivers them back to back. Either way the
+ * replay gives the thread back after every {@link #SLICE_MS} of delivering, so the UI stays
+ * responsive when the listener can't keep up.
+ *
+ * @author Shane Spoor
+ */
+public class TrackReplay implements Runnable
+{
+    public  static final double AS_FAST_AS_POSSIBLE = 0;        /** The speed at which points are delivered without waiting. */
+    private static final long   SLICE_MS            = 8;        /** The longest the replay holds the handler's thread at a time. */
+    private static final String PROVIDER            = "replay"; /** The provider name of the delivered locations. */
+
+    /**
+     * Receives the end of a replay on the handler's thread.
+     */
+    public interface Listener
+    {
+        /**
+         * Called once every point has been delivered.
+         *
+         * @param points    The number of points delivered.
+         * @param elapsedMs How long the replay took.
+         */
+        void onReplayFinished(int points, long elapsedMs);
+    }
+
+    private final RecordedTrack     track;      /** The points to deliver. */
+    private final double            speed;      /** The multiple of real time, or AS_FAST_AS_POSSIBLE. */
+    private final LocationListener  target;     /** Receives the points. */
+    private final Handler           handler;    /** Runs the replay. */
+    private final Listener          listener;   /** Receives the end of the replay. */
+    private long                    startTime;  /** The uptime at which the replay started. */
+    private int                     next;       /** The index of the next point to deliver. */
+    private boolean                 running;    /** Whether the replay has started and not yet finished or been stopped. */
+
+    /**
+     * Creates a replay.
+     *
+     * @param track    The points to deliver.
+     * @param speed    The multiple of real time at which to deliver them, or AS_FAST_AS_POSSIBLE.
+     * @param target   Receives the points.
+     * @param handler  Runs the replay; the target and listener are called on its thread.
+     * @param listener Receives the end of the replay.
+     */
+    public TrackReplay(RecordedTrack track, double speed, LocationListener target, Handler handler, Listener listener)
+    {
+        this.track      = track;
+        this.speed      = speed;
+        this.target     = target;
+        this.handler    = handler;
+        this.listener   = listener;
+    }
+
+    /**
+     * Starts delivering points from the beginning of the track.
+     */
+    public void start()
+    {
+        stop();
+        running     = true;
+        next        = 0;
+        startTime   = SystemClock.uptimeMillis();
+        handler.post(this);
+    }
+
+    /**
+     * Stops delivering points. The listener isn't called.
+     */
+    public void stop()
+    {
+        handler.removeCallbacks(this);
+        running = false;
+    }
+
+    /**
+     * Delivers the points that are due, then schedules itself for the next one.
+     *
+     * @author Shane Spoor
+     */
+    public void run()
+    {
+        long sliceEnd = SystemClock.uptimeMillis() + SLICE_MS;
+        while(running && next < track.size())
+        {
+            long now = SystemClock.uptimeMillis();
+            if(speed > 0)
+            {
+                long due = startTime + (long)((track.time(next) - track.time(0)) / speed);
+                if(due > now)
+                {
+                    handler.postAtTime(this, due);
+                    return;
+                }
+            }
+            if(now >= sliceEnd)
+            {
+                handler.post(this);
+                return;
+            }
+
+            Location loc = new Location(PROVIDER);
+            loc.setTime(track.time(next));
+            loc.setLatitude(track.lat(next));
+            loc.setLongitude(track.lon(next));
+            next++;
+            target.onLocationChanged(loc);
+        }
+
+        if(running)
+        {
+            running = false;
+            listener.onReplayFinished(next, SystemClock.uptimeMillis() - startTime);
+        }
+    }
+}
@@ -0,0 +1,527 @@
+package ca.bcit.A00852406;
+
+import android.util.SparseIntArray;
+
+import ca.bcit.A00852406.util.GeoMath;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Keeps running statistics of each client's track as its fixes arrive.
+ *
+ * For every client the distance travelled, current and average speed, bounding box, time spent
+ * stopped and number of stops are updated in constant time per fix from a handful of primitives, so
+ * nothing is ever recomputed from the client's history. Distances use the equirectangular
+ * approximation, which is accurate to well under a metre over the distance between two fixes.
+ *
+ * A client is considered stopped once it has stayed within {@link #STOP_RADIUS_M} of one spot for
+ * {@link #STOP_MIN_MS}, and moving again as soon as it leaves that radius; the listener is told of
+ * both.
+ *
+ * The same figures are also kept for a sliding window covering the last part of each track (five
+ * minutes by default). Each client's window is a ring of fixed-size time buckets, so adding a fix
+ * only touches the bucket it falls in, and reading the window combines the buckets; a bucket is
+ * reused once it falls out of the window. Windows are measured on the client's own clock, ending at
+ * its latest fix.
+ *
+ * A fix whose time is more than {@link #MAX_AHEAD_MS} after it was received is ignored, since it
+ * would hold the client's latest time in the future and every later fix would count as simultaneous
+ * with it. At most {@link #MAX_CLIENTS} clients are kept, in order of when they were last heard
+ * from; a new client takes the place of the least recently heard from one if that one has been
+ * silent for {@link #IDLE_MS} or the table is full, so idle clients don't hold on to their windows.
+ *
+ * Fixes are fed on the server's receiving thread; the statistics may be read from any thread.
+ *
+ * @author Shane Spoor
+ */
+public class TrackStats implements FixListener
+{
+    public  static final double STOP_RADIUS_M       = 30;       /** How far a client may wander and still be stopped. */
+    public  static final long   STOP_MIN_MS         = 120000;   /** How long a client must stay put to be stopped. */
+    public  static final long   DEFAULT_WINDOW_MS   = 300000;   /** The default length of the sliding window. */
+    public  static final int    DEFAULT_BUCKETS     = 60;       /** The default number of buckets in a window. */
+    public  static final long   MAX_AHEAD_MS        = 60000;    /** How far ahead of its receipt a fix's time may be. */
+    public  static final long   IDLE_MS             = 1800000;  /** How long a client may go unheard before its place may be taken. */
+    public  static final int    MAX_CLIENTS         = 1024;     /** The most clients kept at once. */
+    private static final double SPEED_SMOOTHING     = 0.3;      /** The weight of the newest segment in the current speed. */
+
+    /**
+     * Receives stop and start events on the thread that feeds the fixes.
+     */
+    public interface Listener
+    {
+        /**
+         * Called when a client has stayed put for long enough to be stopped.
+         *
+         * @param fix    The fix that completed the stop.
+         * @param stopMs How long the client has been stopped.
+         */
+        void onStopped(Fix fix, long stopMs);
+
+        /**
+         * Called when a stopped client moves away.
+         *
+         * @param fix    The first fix away from the stop.
+         * @param stopMs How long the client was stopped.
+         */
+        void onMoving(Fix fix, long stopMs);
+    }
+
+    /**
+     * A snapshot of one client's statistics. Distances are in metres, speeds in metres per second and
+     * times in milliseconds.
+     */
+    public static class Summary
+    {
+        public final String     clientAddr;                                 /** The client's address. */
+        public final int        fixes;                                      /** The number of fixes received from the client. */
+        public final double     distance;                                   /** The distance travelled. */
+        public final double     currentSpeed;                               /** The recent speed, smoothed over the last few fixes. */
+        public final double     averageSpeed;                               /** The distance travelled over the time between the first and last fixes. */
+        public final double     minLat, minLon, maxLat, maxLon;             /** The bounding box of the whole track. */
+        public final boolean    stopped;                                    /** Whether the client is stopped. */
+        public final int        stops;                                      /** The number of stops, including the current one. */
+        public final long       dwellMs;                                    /** The total time spent stopped. */
+        public final int        windowFixes;                                /** The number of fixes in the sliding window. */
+        public final double     windowDistance;                             /** The distance travelled in the sliding window. */
+        public final double     windowSpeed;                                /** The average speed over the sliding window. */
+        public final double     windowMinLat, windowMinLon, windowMaxLat, windowMaxLon; /** The bounding box of the sliding window. */
+
+        Summary(String clientAddr, int fixes, double distance, double currentSpeed, double averageSpeed,
+                double minLat, double minLon, double maxLat, double maxLon, boolean stopped, int stops,
+                long dwellMs, int windowFixes, double windowDistance, double windowSpeed,
+                double windowMinLat, double windowMinLon, double windowMaxLat, double windowMaxLon)
+        {
+            this.clientAddr     = clientAddr;
+            this.fixes          = fixes;
+            this.distance       = distance;
+            this.currentSpeed   = currentSpeed;
+            this.averageSpeed   = averageSpeed;
+            this.minLat         = minLat;
+            this.minLon         = minLon;
+            this.maxLat         = maxLat;
+            this.maxLon         = maxLon;
+            this.stopped        = stopped;
+            this.stops          = stops;
+            this.dwellMs        = dwellMs;
+            this.windowFixes    = windowFixes;
+            this.windowDistance = windowDistance;
+            this.windowSpeed    = windowSpeed;
+            this.windowMinLat   = windowMinLat;
+            this.windowMinLon   = windowMinLon;
+            this.windowMaxLat   = windowMaxLat;
+            this.windowMaxLon   = windowMaxLon;
+        }
+    }
+
+    private final Listener          listener;                           /** Receives stop and start events. */
+    private final long              bucketMs;                           /** The length of one window bucket. */
+    private final int               buckets;                            /** The number of buckets in a window. */
+    private final SparseIntArray    slots       = new SparseIntArray(); /** Maps each client key to its index in the arrays below. */
+    private int[]                   keys        = new int[16];          /** Each client's key. */
+    private String[]                addrs       = new String[16];       /** Each client's address. */
+    private long[]                  heard       = new long[16];         /** When each client's latest fix was received. */
+    private int[]                   newer       = new int[16];          /** The next more recently heard from client, or -1. */
+    private int[]                   older       = new int[16];          /** The next less recently heard from client, or -1. */
+    private int                     newest      = -1;                   /** The most recently heard from client, or -1 if there are none. */
+    private int                     oldest      = -1;                   /** The least recently heard from client, or -1 if there are none. */
+    private int[]                   fixes       = new int[16];          /** The number of fixes from each client. */
+    private long[]                  firstTime   = new long[16];         /** The time of each client's first fix. */
+    private long[]                  lastTime    = new long[16];         /** The time of each client's latest fix. */
+    private double[]                lastLat     = new double[16];       /** The latitude of each client's latest fix. */
+    private double[]                lastLon     = new double[16];       /** The longitude of each client's latest fix. */
+    private double[]                distance    = new double[16];       /** The distance each client has travelled. */
+    private double[]                speed       = new double[16];       /** Each client's smoothed current speed. */
+    private double[]                minLat      = new double[16];       /** The southernmost latitude of each client's track. */
+    private double[]                minLon      = new double[16];       /** The westernmost longitude of each client's track. */
+    private double[]                maxLat      = new double[16];       /** The northernmost latitude of each client's track. */
+    private double[]                maxLon      = new double[16];       /** The easternmost longitude of each client's track. */
+    private double[]                anchorLat   = new double[16];       /** The latitude of the spot each client may be stopped at. */
+    private double[]                anchorLon   = new double[16];       /** The longitude of that spot. */
+    private long[]                  anchorTime  = new long[16];         /** When each client arrived at that spot. */
+    private boolean[]               stopped     = new boolean[16];      /** Whether each client is stopped. */
+    private int[]                   stops       = new int[16];          /** The number of times each client has stopped. */
+    private long[]                  dwell       = new long[16];         /** The time each client spent in its finished stops. */
+    private long[]                  bucketId;                           /** Per client and bucket: the bucket's time divided by bucketMs, or -1 if unused. */
+    private int[]                   bucketFixes;                        /** Per client and bucket: the number of fixes. */
+    private long[]                  bucketFirst;                        /** Per client and bucket: the time of the earliest fix. */
+    private double[]                bucketDist;                         /** Per client and bucket: the distance travelled to the fixes in it. */
+    private double[]                bucketBox;                          /** Per client and bucket: min lat, min lon, max lat and max lon. */
+    private int                     count;                              /** The number of clients. */
+    private int                     clears;                             /** The number of times the statistics have been cleared. */
+    private long                    evictedClients;                     /** The number of clients forgotten to make room for new ones. */
+    private long                    futureFixes;                        /** The number of fixes ignored for being too far ahead of their receipt. */
+
+    /**
+     * Creates an aggregator with a five-minute window.
+     *
+     * @param listener Receives stop and start events.
+     */
+    public TrackStats(Listener listener)
+    {
+        this(listener, DEFAULT_WINDOW_MS, DEFAULT_BUCKETS);
+    }
+
+    /**
+     * Creates an aggregator.
+     *
+     * @param listener Receives stop and start events.
+     * @param windowMs The length of the sliding window.
+     * @param buckets  The number of buckets the window is divided into; more buckets make the window's
+     *                 edge sharper at the cost of memory and of reading time.
+     */
+    public TrackStats(Listener listener, long windowMs, int buckets)
+    {
+        this.listener   = listener;
+        this.buckets    = buckets;
+        this.bucketMs   = Math.max(1, windowMs / buckets);
+        bucketId        = new long[16 * buckets];
+        bucketFixes     = new int[16 * buckets];
+        bucketFirst     = new long[16 * buckets];
+        bucketDist      = new double[16 * buckets];
+        bucketBox       = new double[16 * buckets * 4];
+    }
+
+    /**
+     * Adds a fix to its client's statistics.
+     *
+     * @param fix The fix.
+     *
+     * @author Shane Spoor
+     */
+    public synchronized void onFix(Fix fix)
+    {
+        update(fix.clientKey, fix.clientAddr, fix.lat, fix.lon, fix.timeMillis, fix.recvMillis, fix);
+    }
+
+    /**
+     * Adds every fix in a store snapshot, e.g. after the store has been restored from a file. No
+     * events are reported for them. If the statistics are cleared in the meantime the remaining fixes
+     * are skipped.
+     *
+     * @param snap The fixes to add.
+     *
+     * @author Shane Spoor
+     */
+    public void addAll(FixStore.Snapshot snap)
+    {
+        int cleared;
+        synchronized(this)
+        {
+            cleared = clears;
+        }
+        for(long seq = snap.start(); seq < snap.end(); )
+        {
+            long chunkEnd = Math.min(snap.end(), FixStore.Snapshot.nextChunk(seq));
+            synchronized(this)
+            {
+                if(clears != cleared)
+                    return;
+                for(; seq < chunkEnd; seq++)
+                {
+                    int k = snap.client(seq);
+                    update(snap.clientKey(k), snap.clientAddr(k), snap.lat(seq), snap.lon(seq), snap.time(seq),
+                           snap.recvTime(seq), null);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns a snapshot of a client's statistics.
+     *
+     * @param clientKey The client's key (see {@link Fix#keyFor}).
+     * @return The statistics, or null if no fix has been received from the client.
+     */
+    public synchronized Summary get(int clientKey)
+    {
+        int i = slots.get(clientKey, -1);
+        return i < 0 ? null : summarise(i);
+    }
+
+    /**
+     * Returns a snapshot of every client's statistics.
+     *
+     * @return The statistics, most recently heard from client first.
+     */
+    public synchronized ArrayList<Summary> getAll()
+    {
+        ArrayList<Summary> all = new ArrayList<Summary>(count);
+        for(int i = newest; i >= 0; i = older[i])
+            all.add(summarise(i));
+        return all;
+    }
+
+    /**
+     * Returns the number of clients forgotten to make room for new ones.
+     *
+     * @return The number of clients forgotten.
+     */
+    public synchronized long getEvictedClients()
+    {
+        return evictedClients;
+    }
+
+    /**
+     * Returns the number of fixes ignored because their time was more than {@link #MAX_AHEAD_MS}
+     * after they were received.
+     *
+     * @return The number of fixes ignored.
+     */
+    public synchronized long getFutureFixes()
+    {
+        return futureFixes;
+    }
+
+    /**
+     * Forgets every client.
+     */
+    public synchronized void clear()
+    {
+        slots.clear();
+        Arrays.fill(addrs, null);
+        count           = 0;
+        newest          = -1;
+        oldest          = -1;
+        evictedClients  = 0;
+        futureFixes     = 0;
+        clears++;
+    }
+
+    /**
+     * Adds a fix to its client's statistics.
+     *
+     * @param recv When the fix was received.
+     * @param fix  The fix to report events with, or null to report none.
+     */
+    private void update(int key, String addr, double lat, double lon, long time, long recv, Fix fix)
+    {
+        if(time - recv > MAX_AHEAD_MS)
+        {
+            futureFixes++;
+            return;
+        }
+
+        int i = slots.get(key, -1);
+        if(i < 0)
+        {
+            addClient(key, addr, lat, lon, time, recv);
+            return;
+        }
+        heard[i] = Math.max(heard[i], recv);
+        if(i != newest)
+        {
+            unlink(i);
+            linkNewest(i);
+        }
+
+        // Fixes that arrive out of order still count, but are treated as simultaneous with the latest.
+        long   prev = lastTime[i];
+        long   t    = Math.max(time, prev);
+        double d    = GeoMath.fastDistance(lastLat[i], lastLon[i], lat, lon);
+        long   dt   = t - prev;
+
+        fixes[i]++;
+        distance[i] += d;
+        if(dt > 0)
+            speed[i] += SPEED_SMOOTHING * (d * 1000 / dt - speed[i]);
+        minLat[i]   = Math.min(minLat[i], lat);
+        minLon[i]   = Math.min(minLon[i], lon);
+        maxLat[i]   = Math.max(maxLat[i], lat);
+        maxLon[i]   = Math.max(maxLon[i], lon);
+        lastLat[i]  = lat;
+        lastLon[i]  = lon;
+        lastTime[i] = t;
+
+        if(GeoMath.fastDistance(anchorLat[i], anchorLon[i], lat, lon) > STOP_RADIUS_M)
+        {
+            if(stopped[i])
+            {
+                long stopMs = prev - anchorTime[i];
+                dwell[i]   += stopMs;
+                stopped[i]  = false;
+                if(fix != null)
+                    listener.onMoving(fix, stopMs);
+            }
+            anchorLat[i]    = lat;
+            anchorLon[i]    = lon;
+            anchorTime[i]   = t;
+        }
+        else if(!stopped[i] && t - anchorTime[i] >= STOP_MIN_MS)
+        {
+            stopped[i] = true;
+            stops[i]++;
+            if(fix != null)
+                listener.onStopped(fix, t - anchorTime[i]);
+        }
+
+        addToBucket(i, lat, lon, t, d);
+    }
+
+    /**
+     * Starts the statistics of a client with its first fix, as the most recently heard from client.
+     * The least recently heard from client is forgotten and its place reused if it has been idle for
+     * IDLE_MS or the table is full.
+     */
+    private void addClient(int key, String addr, double lat, double lon, long time, long recv)
+    {
+        int i;
+        if(count == MAX_CLIENTS || (oldest >= 0 && recv - heard[oldest] >= IDLE_MS))
+        {
+            i = oldest;
+            unlink(i);
+            slots.delete(keys[i]);
+            evictedClients++;
+        }
+        else
+        {
+            if(count == addrs.length)
+                grow();
+            i = count++;
+        }
+
+        slots.put(key, i);
+        keys[i]         = key;
+        addrs[i]        = addr;
+        heard[i]        = recv;
+        fixes[i]        = 1;
+        firstTime[i]    = time;
+        lastTime[i]     = time;
+        lastLat[i]      = lat;
+        lastLon[i]      = lon;
+        distance[i]     = 0;
+        speed[i]        = 0;
+        minLat[i]       = maxLat[i] = lat;
+        minLon[i]       = maxLon[i] = lon;
+        anchorLat[i]    = lat;
+        anchorLon[i]    = lon;
+        anchorTime[i]   = time;
+        stopped[i]      = false;
+        stops[i]        = 0;
+        dwell[i]        = 0;
+        Arrays.fill(bucketId, i * buckets, (i + 1) * buckets, -1);
+        addToBucket(i, lat, lon, time, 0);
+        linkNewest(i);
+    }
+
+    /**
+     * Adds a fix to the window bucket its time falls in, first emptying the bucket if it last held an
+     * older part of the ring.
+     */
+    private void addToBucket(int i, double lat, double lon, long time, double d)
+    {
+        long id = Math.max(0, time) / bucketMs;
+        int  b  = i * buckets + (int)(id % buckets);
+        if(bucketId[b] != id)
+        {
+            bucketId[b]             = id;
+            bucketFixes[b]          = 0;
+            bucketFirst[b]          = time;
+            bucketDist[b]           = 0;
+            bucketBox[4 * b]        = bucketBox[4 * b + 2] = lat;
+            bucketBox[4 * b + 1]    = bucketBox[4 * b + 3] = lon;
+        }
+        bucketFixes[b]++;
+        bucketDist[b]           += d;
+        bucketBox[4 * b]        = Math.min(bucketBox[4 * b], lat);
+        bucketBox[4 * b + 1]    = Math.min(bucketBox[4 * b + 1], lon);
+        bucketBox[4 * b + 2]    = Math.max(bucketBox[4 * b + 2], lat);
+        bucketBox[4 * b + 3]    = Math.max(bucketBox[4 * b + 3], lon);
+    }
+
+    /**
+     * Builds a client's summary, combining the buckets still inside its window.
+     */
+    private Summary summarise(int i)
+    {
+        long   newest  = Math.max(0, lastTime[i]) / bucketMs;
+        int    wFixes  = 0;
+        double wDist   = 0;
+        long   wFirst  = lastTime[i];
+        double wMinLat = lastLat[i], wMinLon = lastLon[i], wMaxLat = lastLat[i], wMaxLon = lastLon[i];
+        for(int b = i * buckets; b < (i + 1) * buckets; b++)
+        {
+            if(bucketId[b] < 0 || newest - bucketId[b] >= buckets)
+                continue;
+            wFixes  += bucketFixes[b];
+            wDist   += bucketDist[b];
+            wFirst   = Math.min(wFirst, bucketFirst[b]);
+            wMinLat  = Math.min(wMinLat, bucketBox[4 * b]);
+            wMinLon  = Math.min(wMinLon, bucketBox[4 * b + 1]);
+            wMaxLat  = Math.max(wMaxLat, bucketBox[4 * b + 2]);
+            wMaxLon  = Math.max(wMaxLon, bucketBox[4 * b + 3]);
+        }
+
+        long span  = lastTime[i] - firstTime[i];
+        long wSpan = lastTime[i] - wFirst;
+        long stop  = stopped[i] ? lastTime[i] - anchorTime[i] : 0;
+        return new Summary(addrs[i], fixes[i], distance[i], speed[i], span > 0 ? distance[i] * 1000 / span : 0,
+                           minLat[i], minLon[i], maxLat[i], maxLon[i], stopped[i], stops[i], dwell[i] + stop,
+                           wFixes, wDist, wSpan > 0 ? wDist * 1000 / wSpan : 0, wMinLat, wMinLon, wMaxLat, wMaxLon);
+    }
+
+    /**
+     * Doubles the per-client arrays.
+     */
+    private void grow()
+    {
+        int n       = Math.min(count * 2, MAX_CLIENTS);
+        keys        = Arrays.copyOf(keys, n);
+        addrs       = Arrays.copyOf(addrs, n);
+        heard       = Arrays.copyOf(heard, n);
+        newer       = Arrays.copyOf(newer, n);
+        older       = Arrays.copyOf(older, n);
+        fixes       = Arrays.copyOf(fixes, n);
+        firstTime   = Arrays.copyOf(firstTime, n);
+        lastTime    = Arrays.copyOf(lastTime, n);
+        lastLat     = Arrays.copyOf(lastLat, n);
+        lastLon     = Arrays.copyOf(lastLon, n);
+        distance    = Arrays.copyOf(distance, n);
+        speed       = Arrays.copyOf(speed, n);
+        minLat      = Arrays.copyOf(minLat, n);
+        minLon      = Arrays.copyOf(minLon, n);
+        maxLat      = Arrays.copyOf(maxLat, n);
+        maxLon      = Arrays.copyOf(maxLon, n);
+        anchorLat   = Arrays.copyOf(anchorLat, n);
+        anchorLon   = Arrays.copyOf(anchorLon, n);
+        anchorTime  = Arrays.copyOf(anchorTime, n);
+        stopped     = Arrays.copyOf(stopped, n);
+        stops       = Arrays.copyOf(stops, n);
+        dwell       = Arrays.copyOf(dwell, n);
+        bucketId    = Arrays.copyOf(bucketId, n * buckets);
+        bucketFixes = Arrays.copyOf(bucketFixes, n * buckets);
+        bucketFirst = Arrays.copyOf(bucketFirst, n * buckets);
+        bucketDist  = Arrays.copyOf(bucketDist, n * buckets);
+        bucketBox   = Arrays.copyOf(bucketBox, n * buckets * 4);
+    }
+
+    /**
+     * Takes a client out of the recency list.
+     */
+    private void unlink(int i)
+    {
+        if(newer[i] >= 0)
+            older[newer[i]] = older[i];
+        else
+            newest = older[i];
+        if(older[i] >= 0)
+            newer[older[i]] = newer[i];
+        else
+            oldest = newer[i];
+    }
+
+    /**
+     * Puts a client at the most recently heard from end of the recency list.
+     */
+    private void linkNewest(int i)
+    {
+        newer[i] = -1;
+        older[i] = newest;
+        if(newest >= 0)
+            newer[newest] = i;
+        else
+            oldest = i;
+        newest = i;
+    }
+}
@@ -0,0 +1,1259 @@
+package ca.bcit.A00852406;
+
+import android.app.Notification;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.Intent;
+import android.os.Binder;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+
+import ca.bcit.A00852406.util.Tracer;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A long-lived service that receives fixes for the server and sends fixes for the client.
+ *
+ * Both jobs used to be AsyncTasks owned by the activities, which meant that rotating the screen
+ * orphaned the receiver and that the receiver's endless loop occupied the single serial executor
+ * every AsyncTask shares on API 11+. The service instead runs the receiver on its own thread and
+ * sends on a dedicated single-thread executor, and it stays in the foreground for as long as either
+ * is active. Activities bind to it to start and stop the work and to read its state.
+ *
+ * The service's public methods must be called on the main thread, and the server and send
+ * listeners registered through them are always called on the main thread.
+ *
+ * @author Shane Spoor
+ */
+public class TrackingService extends Service
+{
+    private static final int NOTIFICATION_ID    = 1;   /** The ID of the foreground notification. */
+    private static final int DRAIN_PERIOD_MS    = 100; /** How often the receiver releases fixes held by the limiter when idle. */
+    private static final int BACKLOG_HIGH       = 256; /** The number of undelivered UI updates at which back-pressure starts. */
+    private static final int BACKLOG_LOW        = 64;  /** The number of undelivered UI updates at which back-pressure stops. */
+    private static final String STATE_FILE      = "server-state.bin"; /** The file in the app's files directory holding the saved server state. */
+
+    /**
+     * Receives the server's output on the main thread.
+     */
+    public interface ServerListener
+    {
+        /**
+         * Called when a fix has been received and decoded.
+         *
+         * @param fix The fix.
+         */
+        void onFixReceived(Fix fix);
+
+        /**
+         * Called with informational output, such as geofence crossings.
+         *
+         * @param message The message, ending in a newline.
+         */
+        void onServerMessage(String message);
+
+        /**
+         * Called when the receiver fails. The receiver has stopped by the time this is called.
+         *
+         * @param message A description of the failure.
+         */
+        void onServerError(String message);
+
+        /**
+         * Called once the state saved before the process was last killed has been restored into the
+         * store, or once it's known there's nothing to restore.
+         *
+         * @param port The port the restored server was listening on, or 0 if nothing was restored.
+         */
+        void onStateRestored(int port);
+    }
+
+    /**
+     * Receives send failures and reports on the servers on the main thread.
+     */
+    public interface SendListener
+    {
+        /**
+         * Called when a fix couldn't be sent.
+         *
+         * @param message A description of the failure.
+         */
+        void onSendFailure(String message);
+
+        /**
+         * Called when the client switches servers, and periodically with each server's round trip
+         * time and loss.
+         *
+         * @param message The message, ending in a newline.
+         */
+        void onSendStatus(String message);
+    }
+
+    /**
+     * Receives the outcome of an export on the main thread.
+     */
+    public interface ExportListener
+    {
+        /**
+         * Called when an export has finished.
+         *
+         * @param file      The file written.
+         * @param points    The number of fixes written.
+         * @param elapsedMs How long the export took.
+         * @param truncated Whether fixes in the requested range had already been dropped from memory.
+         */
+        void onExportFinished(File file, long points, long elapsedMs, boolean truncated);
+
+        /**
+         * Called when an export fails.
+         *
+         * @param message A description of the failure.
+         */
+        void onExportFailure(String message);
+    }
+
+    /**
+     * Reports geofence crossings to the server listeners as messages.
+     */
+    private class GeofenceCrossings implements GeofenceEngine.Listener
+    {
+        public void onEnter(Fix fix, Geofence fence)
+        {
+            postServerMessage("Client " + fix.clientAddr + " entered " + fence.id + " at " + fix.time + "\n");
+        }
+
+        public void onExit(Fix fix, Geofence fence)
+        {
+            postServerMessage("Client " + fix.clientAddr + " left " + fence.id + " at " + fix.time + "\n");
+        }
+    }
+
+    /**
+     * Reports clients stopping and moving off again to the server listeners as messages.
+     */
+    private class StopEvents implements TrackStats.Listener
+    {
+        public void onStopped(Fix fix, long stopMs)
+        {
+            postServerMessage("Client " + fix.clientAddr + " stopped at " + fix.time + "\n");
+        }
+
+        public void onMoving(Fix fix, long stopMs)
+        {
+            postServerMessage("Client " + fix.clientAddr + " moved off at " + fix.time + " after " + stopMs / 1000 + " s\n");
+        }
+    }
+
+    /**
+     * The binder handed to bound activities; it simply exposes the service.
+     */
+    public class LocalBinder extends Binder
+    {
+        /**
+         * Returns the service.
+         *
+         * @return The service.
+         */
+        public TrackingService getService()
+        {
+            return TrackingService.this;
+        }
+    }
+
+    /**
+     * Listens for client data on a socket and dispatches each fix.
+     *
+     * @author <u>Aman Abdulla</u>
+     * @author Shane Spoor
+     */
+    private class Receiver extends Thread
+    {
+        private static final int DGRAM_SIZE = 1024; /** The size of the datagram in which incoming data will be stored. */
+
+        private final int               port;                                               /** The port on which to listen. */
+        private final byte[]            data = new byte[DGRAM_SIZE];                        /** A byte array in which to actually store the data. */
+        private final DatagramPacket    dgramPacket = new DatagramPacket(data, DGRAM_SIZE); /** A packet object that encapsulates the buffer. */
+        private final Fix.Decoder       decoder = new Fix.Decoder();                        /** Decodes the fixes sent by clients. */
+        private final ArrayList<Fix>    drained = new ArrayList<Fix>();                     /** Fixes released by the limiter. */
+        private final ControlLimiter    controlLimit = new ControlLimiter();                /** Limits the control datagrams answered per source. */
+        private volatile DatagramSocket udpSock;                                            /** A UDP socket for receiving data. */
+        private volatile boolean        cancelled;                                          /** Whether the receiver has been asked to stop. */
+
+        Receiver(int port)
+        {
+            super("TrackingService-receiver");
+            this.port = port;
+        }
+
+        /**
+         * Receives datagrams until cancelled.
+         *
+         * Probes from clients choosing between servers are answered straight away, and subscription
+         * requests from viewers are handed to the fan-out, both within a per-source rate limit so
+         * that spoofed requests can't turn the server into a reflector. Everything else goes through
+         * the per-client limiter before it's decoded, so a flooding client costs little more than the
+         * receive itself; accepted datagrams are decoded into a fix once and passed to the fix
+         * listeners on this thread, then to the server listeners on the main thread. The socket times
+         * out periodically so that fixes held by the limiter are released even when no datagrams
+         * arrive.
+         */
+        @Override
+        public void run()
+        {
+            try
+            {
+                udpSock = new DatagramSocket(port);
+                udpSock.setSoTimeout(DRAIN_PERIOD_MS);
+                fanOut.start(udpSock);
+                while(!cancelled)
+                {
+                    boolean received = false;
+                    long    trace    = Tracer.begin("server.receive");
+                    try
+                    {
+                        udpSock.receive(dgramPacket);
+                        received = true;
+                    } catch (SocketTimeoutException e) {
+                        // Nothing arrived; release any held fixes below.
+                    } finally {
+                        Tracer.end(trace);
+                    }
+                    if(!received)
+                    {
+                        drainHeld(System.currentTimeMillis());
+                        continue;
+                    }
+
+                    long        now        = System.currentTimeMillis();
+                    InetAddress clientAddr = dgramPacket.getAddress();
+                    trace = Tracer.begin("server.control");
+                    String      text       = new String(dgramPacket.getData(), 0, dgramPacket.getLength());
+                    boolean     ping       = text.startsWith(ServerPool.PING);
+                    boolean     control    = ping || SubscriberFanOut.isControl(text);
+                    if(control && controlLimit.allow(Fix.keyFor(clientAddr), now))
+                    {
+                        if(ping)
+                            answerPing(text, clientAddr, dgramPacket.getPort());
+                        else
+                            fanOut.handleControl(text, clientAddr, dgramPacket.getPort());
+                    }
+                    Tracer.end(trace);
+                    if(!control)
+                    {
+                        trace = Tracer.begin("server.limit");
+                        int verdict = limiter.check(Fix.keyFor(clientAddr), clientAddr, now);
+                        Tracer.end(trace);
+                        if(verdict != IngestLimiter.REJECT)
+                        {
+                            trace = Tracer.begin("server.decode");
+                            Fix fix = decoder.decode(dgramPacket.getData(), 0, dgramPacket.getLength(), clientAddr, now);
+                            Tracer.end(trace);
+                            if(fix != null && verdict == IngestLimiter.HOLD)
+                                limiter.hold(fix);
+                            else if(fix != null)
+                                dispatch(fix);
+                        }
+                    }
+                    drainHeld(now);
+                }
+            } catch (Exception e) {
+                if(!cancelled)
+                    postServerError(this, "Receive failure: " + e.getMessage() + "\n");
+            } finally {
+                fanOut.stop(udpSock);
+                if(udpSock != null)
+                    udpSock.close();
+            }
+        }
+
+        /**
+         * Answers a client's probe by echoing it back as a {@link ServerPool#PONG}, so the client can
+         * time the round trip. The answer is the same length as the probe.
+         */
+        private void answerPing(String text, InetAddress addr, int port)
+        {
+            byte[] bytes = (ServerPool.PONG + text.substring(ServerPool.PING.length())).getBytes();
+            try
+            {
+                udpSock.send(new DatagramPacket(bytes, bytes.length, addr, port));
+            } catch (IOException e) {
+                // Dropped, like any other UDP datagram; the client counts it as lost.
+            }
+        }
+
+        /**
+         * Dispatches the fixes the limiter is ready to release.
+         */
+        private void drainHeld(long now)
+        {
+            limiter.drain(now, drained);
+            for(int i = 0; i < drained.size(); i++)
+                dispatch(drained.get(i));
+            drained.clear();
+        }
+
+        /**
+         * Stops the receiver. Closing the socket unblocks a pending receive, so the thread exits
+         * promptly instead of waiting for the next datagram.
+         */
+        void cancel()
+        {
+            cancelled = true;
+            DatagramSocket sock = udpSock;
+            if(sock != null)
+                sock.close();
+        }
+    }
+
+    /**
+     * Reads the servers' answers to the client's probes from the client's socket and passes them to
+     * the server pool. The thread ends when the socket is closed.
+     */
+    private static class AnswerReader extends Thread
+    {
+        private final DatagramSocket    sock;                                               /** The client's socket. */
+        private final ServerPool        pool;                                               /** Receives the answers. */
+        private final byte[]            data        = new byte[64];                         /** Holds each answer. */
+        private final DatagramPacket    dgramPacket = new DatagramPacket(data, data.length); /** A packet object that encapsulates the buffer. */
+
+        AnswerReader(DatagramSocket sock, ServerPool pool)
+        {
+            super("TrackingService-answers");
+            this.sock = sock;
+            this.pool = pool;
+        }
+
+        @Override
+        public void run()
+        {
+            while(true)
+            {
+                try
+                {
+                    sock.receive(dgramPacket);
+                } catch (IOException e) {
+                    return;
+                }
+                pool.onAnswer(new String(data, 0, dgramPacket.getLength()), dgramPacket.getAddress(),
+                              dgramPacket.getPort(), System.nanoTime());
+            }
+        }
+    }
+
+    /**
+     * One run of the client's sending: the thread that sends its fixes and probes, the socket they're
+     * sent through and the servers they're sent to.
+     *
+     * Every call to startSending creates a new session, and a session's socket is only ever touched
+     * on its own thread, so a session that's shutting down can't close or send through the socket of
+     * the one that replaced it.
+     *
+     * Host names are resolved on a thread of their own, so a slow or unreachable DNS server can't
+     * hold up sending or probing and so delay failing over; a server whose host hasn't resolved yet
+     * isn't probed, and fixes for it fail. Hosts that fail to resolve are tried again with every
+     * report.
+     */
+    private class SendSession
+    {
+        private final ScheduledExecutorService  executor    = Executors.newSingleThreadScheduledExecutor(); /** Sends the fixes and probes. */
+        private final ExecutorService           resolver    = Executors.newSingleThreadExecutor();          /** Resolves the servers' host names. */
+        private final AtomicBoolean             resolving   = new AtomicBoolean();                          /** Whether the resolver is working through the hosts. */
+        private final ServerPool                pool;                                                       /** Chooses the servers to send to. */
+        private final SendListener              listener;                                                   /** Receives send failures and reports; may be null. */
+        private DatagramSocket                  sock;                                                       /** The socket, or null until first needed; only touched on the executor. */
+
+        SendSession(ServerPool pool, SendListener listener)
+        {
+            this.pool       = pool;
+            this.listener   = listener;
+        }
+
+        /**
+         * Starts resolving the servers' hosts and probing the servers every
+         * {@link ServerPool#PROBE_PERIOD_MS}. A probe round that fails is reported rather than
+         * ending the probing, which is what an exception escaping a periodic task would do.
+         */
+        void start()
+        {
+            resolveHosts();
+            executor.scheduleAtFixedRate(new Runnable()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        probe();
+                    } catch (RuntimeException e) {
+                        postSendFailure(listener, "Probe failure: " + e + "\n");
+                    }
+                }
+            }, 0, ServerPool.PROBE_PERIOD_MS, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * Queues data to be sent to the servers in use.
+         */
+        void send(final String data)
+        {
+            executor.execute(new Runnable()
+            {
+                public void run()
+                {
+                    long trace = Tracer.begin("client.send");
+                    try
+                    {
+                        open();
+                        long   encode = Tracer.begin("client.encode");
+                        byte[] bytes  = data.getBytes();
+                        Tracer.end(encode);
+                        for(ServerPool.Endpoint e : pool.getTargets())
+                        {
+                            try
+                            {
+                                sock.send(new DatagramPacket(bytes, bytes.length, resolved(e), e.port));
+                                datagramsSent.incrementAndGet();
+                            } catch (IOException ex) {
+                                postSendFailure(listener, "Send failure: " + e + ": " + ex.getMessage() + "\n");
+                            }
+                        }
+                    } catch (Exception e) {
+                        postSendFailure(listener, "Send failure: " + e.getMessage() + "\n");
+                    } finally {
+                        Tracer.end(trace);
+                    }
+                }
+            });
+        }
+
+        /**
+         * Chooses the servers to send to again from the answers so far, passes on any change and any
+         * report that's due, then probes every server. Runs on the executor.
+         *
+         * Choosing and reporting before probing gives every probe counted in a report a whole period
+         * to be answered. Probes that can't be sent (e.g., because a host name doesn't resolve) count
+         * as lost rather than being reported as failures every round.
+         */
+        private void probe()
+        {
+            String change = pool.select(System.nanoTime());
+            if(change != null)
+                postSendStatus(listener, change);
+            String report = pool.endRound();
+            if(report != null)
+            {
+                postSendStatus(listener, report);
+                resolveHosts();
+            }
+
+            try
+            {
+                open();
+            } catch (IOException e) {
+                postSendFailure(listener, "Send failure: " + e.getMessage() + "\n");
+                return;
+            }
+            for(ServerPool.Endpoint e : pool.getEndpoints())
+            {
+                try
+                {
+                    byte[] bytes = ServerPool.probe(System.nanoTime()).getBytes();
+                    sock.send(new DatagramPacket(bytes, bytes.length, resolved(e), e.port));
+                } catch (IOException ex) {
+                    // Counted as lost.
+                }
+                pool.onProbeSent(e);
+            }
+        }
+
+        /**
+         * Has the resolver look up every host that hasn't been resolved yet, unless it's already
+         * doing so. A host that can't be resolved is reported.
+         */
+        private void resolveHosts()
+        {
+            if(!resolving.compareAndSet(false, true))
+                return;
+            resolver.execute(new Runnable()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        for(ServerPool.Endpoint e : pool.getEndpoints())
+                        {
+                            if(e.address != null)
+                                continue;
+                            try
+                            {
+                                e.address = InetAddress.getByName(e.host);
+                            } catch (IOException ex) {
+                                postSendFailure(listener, "Send failure: " + e + ": " + ex.getMessage() + "\n");
+                            }
+                        }
+                    } finally {
+                        resolving.set(false);
+                    }
+                }
+            });
+        }
+
+        /**
+         * Opens the socket and starts reading the servers' answers from it, if that hasn't been done
+         * yet. Runs on the executor.
+         */
+        private void open() throws IOException
+        {
+            if(sock != null)
+                return;
+            sock = new DatagramSocket();
+            new AnswerReader(sock, pool).start();
+        }
+
+        /**
+         * Runs a task on the main thread once everything queued so far has been sent.
+         */
+        void whenSent(final Runnable task)
+        {
+            executor.execute(new Runnable()
+            {
+                public void run()
+                {
+                    mainHandler.post(task);
+                }
+            });
+        }
+
+        /**
+         * Closes the socket after the queued sends and lets the thread end; no more probes are sent
+         * and no more hosts are resolved.
+         */
+        void shutdown()
+        {
+            resolver.shutdownNow();
+            executor.execute(new Runnable()
+            {
+                public void run()
+                {
+                    if(sock != null)
+                        sock.close();
+                    sock = null;
+                }
+            });
+            executor.shutdown();
+        }
+    }
+
+    private final IBinder                                       binder          = new LocalBinder();                                        /** The binder handed to activities. */
+    private final Handler                                       mainHandler     = new Handler(Looper.getMainLooper());                      /** Posts callbacks to the main thread. */
+    private final SubscriberFanOut                              fanOut          = new SubscriberFanOut();                                   /** Rebroadcasts received fixes to subscribed viewers. */
+    private final IngestLimiter                                 limiter         = new IngestLimiter();                                      /** Limits the rate at which each client's fixes are accepted. */
+    private final AtomicInteger                                 uiBacklog       = new AtomicInteger();                                      /** The number of fixes posted to the main thread but not yet delivered. */
+    private final CopyOnWriteArrayList<FixListener>             fixListeners    = new CopyOnWriteArrayList<FixListener>();                  /** Consumers of fixes on the receiving thread. */
+    private final CopyOnWriteArrayList<ServerListener>          serverListeners = new CopyOnWriteArrayList<ServerListener>();               /** Consumers of the server's output on the main thread. */
+    private final FixStore                                      store           = new FixStore();                                           /** The fixes received since the server started. */
+    private final ExecutorService                               exporter        = Executors.newSingleThreadExecutor();                      /** Runs exports and other file work. */
+    private final DensityGrid                                   density         = new DensityGrid();                                        /** Counts the received fixes for the heatmap. */
+    private final GeofenceEngine                                geofences       = new GeofenceEngine(new GeofenceCrossings());              /** Reports geofence crossings. */
+    private final ServerLog                                     log             = new ServerLog();                                          /** The most recent fixes and messages, for redisplay. */
+    private final TrackStats                                    stats           = new TrackStats(new StopEvents());                         /** Keeps running statistics of each client's track. */
+    private Receiver                                            receiver;                                                                   /** The receiving thread, or null if the server isn't running. */
+    private int                                                 serverPort;                                                                 /** The port the server is listening on. */
+    private boolean                                             restoring;                                                                  /** Whether the saved state is still being restored. */
+    private boolean                                             restored;                                                                   /** Whether the state in the store was restored and the server hasn't been started since. */
+    private SendSession                                         sender;                                                                     /** Sends the client's fixes and probes, or null if the client isn't sending. */
+    private final AtomicLong                                    datagramsSent   = new AtomicLong();                                         /** The number of the client's datagrams sent successfully. */
+
+    /**
+     * Returns the binder through which activities reach the service.
+     *
+     * @param intent Unused
+     * @return The binder.
+     */
+    @Override
+    public IBinder onBind(Intent intent)
+    {
+        return binder;
+    }
+
+    /**
+     * Keeps the service running after the activities unbind; it stops itself once idle.
+     *
+     * @param intent  Unused
+     * @param flags   Unused
+     * @param startId Unused
+     * @return START_NOT_STICKY, since there's nothing to resume if the process is killed.
+     */
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId)
+    {
+        return START_NOT_STICKY;
+    }
+
+    /**
+     * Feeds the geofence engine, the heatmap and the track statistics from the receiving thread, and
+     * restores the server state saved before the process was last killed.
+     *
+     * The state is read on the export thread, so creating the service doesn't wait on the file; the
+     * server listeners are told once it has been read, and the server can't be started until then.
+     */
+    @Override
+    public void onCreate()
+    {
+        super.onCreate();
+        addFixListener(geofences);
+        addFixListener(density);
+        addFixListener(stats);
+
+        final File file = new File(getFilesDir(), STATE_FILE);
+        restoring = true;
+        exporter.execute(new Runnable()
+        {
+            public void run()
+            {
+                restoreState(file);
+            }
+        });
+    }
+
+    /**
+     * Reads the saved state into the store, the limiter and the log, rebuilds the heatmap and the
+     * track statistics from it, and deletes the file so the same session isn't restored again; it's
+     * saved afresh the next time an activity asks. Runs on the export thread.
+     *
+     * @param file The state file, which need not exist.
+     */
+    private void restoreState(File file)
+    {
+        int port = 0;
+        if(file.exists())
+        {
+            long start = System.currentTimeMillis();
+            try
+            {
+                port = ServerStateFile.restore(file, store, limiter, log);
+                FixStore.Snapshot restored = store.snapshot();
+                density.addAll(restored);
+                stats.addAll(restored);
+                log.add("Restored " + (restored.end() - restored.start()) + " fixes from " + restored.clientCount()
+                        + " clients in " + (System.currentTimeMillis() - start) + " ms\n");
+            } catch (IOException e) {
+                log.add("Restore failure: " + e.getMessage() + "\n");
+            }
+            if(!file.delete())
+                log.add("Restore failure: couldn't delete " + file.getName() + "\n");
+        }
+
+        final int restoredPort = port;
+        mainHandler.post(new Runnable()
+        {
+            public void run()
+            {
+                restoring = false;
+                if(restoredPort != 0)
+                {
+                    restored    = true;
+                    serverPort  = restoredPort;
+                }
+                for(ServerListener l : serverListeners)
+                    l.onStateRestored(restoredPort);
+            }
+        });
+    }
+
+    /**
+     * Stops the receiver and the sender.
+     */
+    @Override
+    public void onDestroy()
+    {
+        super.onDestroy();
+        if(receiver != null)
+            receiver.cancel();
+        receiver = null;
+        shutdownSender();
+        exporter.shutdown();
+    }
+
+    /**
+     * Starts listening for client data on a port. Does nothing if the server is already running or
+     * the saved state is still being restored.
+     *
+     * If the state was restored and the server hasn't been started since, the restored fixes and
+     * counters are kept and the session carries on from them; otherwise they're cleared.
+     *
+     * @param port The port on which to listen.
+     *
+     * @author Shane Spoor
+     */
+    public void startServer(int port)
+    {
+        if(receiver != null || restoring)
+            return;
+        if(!restored)
+        {
+            store.clear();
+            density.clear();
+            stats.clear();
+            limiter.clear();
+        }
+        restored   = false;
+        serverPort = port;
+        receiver   = new Receiver(port);
+        receiver.start();
+        updateForeground();
+    }
+
+    /**
+     * Stops listening for client data. The saved state is deleted, since a session that was stopped
+     * shouldn't come back when the process is next started.
+     *
+     * @author Shane Spoor
+     */
+    public void stopServer()
+    {
+        if(receiver == null)
+            return;
+        receiver.cancel();
+        receiver = null;
+        final File file = new File(getFilesDir(), STATE_FILE);
+        exporter.execute(new Runnable()
+        {
+            public void run()
+            {
+                if(file.exists() && !file.delete())
+                    postServerError(null, "Save failure: couldn't delete " + file.getName() + "\n");
+            }
+        });
+        updateForeground();
+    }
+
+    /**
+     * Saves the server's fixes, counters and log on a background thread, to be restored if the
+     * process is killed and the service is created again. The state saved is the state at the moment
+     * this is called; failures are reported to the server listeners. Nothing is saved unless the
+     * server is running or holds restored state it hasn't resumed from.
+     *
+     * @author Shane Spoor
+     */
+    public void saveState()
+    {
+        if(restoring || (receiver == null && !restored))
+            return;
+        final File                                  file     = new File(getFilesDir(), STATE_FILE);
+        final int                                   port     = serverPort;
+        final FixStore.Snapshot                     fixes    = store.snapshot();
+        final List<IngestLimiter.ClientStats>       counters = limiter.getClientStats();
+        final String[]                              lines    = log.lines();
+        exporter.execute(new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    ServerStateFile.save(file, port, fixes, counters, lines);
+                } catch (IOException e) {
+                    postServerError(null, "Save failure: " + e.getMessage() + "\n");
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns the most recent fixes and messages, for an activity to display again.
+     *
+     * @return The log.
+     */
+    public ServerLog getLog()
+    {
+        return log;
+    }
+
+    /**
+     * Adds a line to the log kept for redisplay, for output that doesn't come from the service.
+     *
+     * @param text The text, ending in a newline.
+     */
+    public void appendLog(String text)
+    {
+        log.add(text);
+    }
+
+    /**
+     * Returns whether the state saved before the process was last killed is still being restored.
+     *
+     * @return True until the server listeners have been told the state has been restored.
+     */
+    public boolean isRestoring()
+    {
+        return restoring;
+    }
+
+    /**
+     * Returns whether the server is listening.
+     *
+     * @return True if the server is listening.
+     */
+    public boolean isServerRunning()
+    {
+        return receiver != null;
+    }
+
+    /**
+     * Returns the port the server is listening on.
+     *
+     * @return The port, the restored server's port if the state was restored and the server hasn't
+     *         been started since, or 0 if the server has never been started.
+     */
+    public int getServerPort()
+    {
+        return serverPort;
+    }
+
+    /**
+     * Returns the store holding the fixes received since the server was last started.
+     *
+     * @return The store.
+     */
+    public FixStore getStore()
+    {
+        return store;
+    }
+
+    /**
+     * Returns the density grid counting the fixes received since the server was last started.
+     *
+     * @return The density grid.
+     */
+    public DensityGrid getDensityGrid()
+    {
+        return density;
+    }
+
+    /**
+     * Returns the running statistics of each client's track since the server was last started.
+     *
+     * @return The statistics.
+     */
+    public TrackStats getTrackStats()
+    {
+        return stats;
+    }
+
+    /**
+     * Exports received tracks to a file on a background thread.
+     *
+     * The export covers the fixes received up to the moment this is called. The listener is told the
+     * outcome whatever goes wrong, including exceptions other than I/O errors.
+     *
+     * @param format     One of the TrackExporter.FORMAT_ constants.
+     * @param clientKeys The keys of the clients to export, or null for every client.
+     * @param from       The earliest fix time to export, in milliseconds since the epoch.
+     * @param to         The latest fix time to export, in milliseconds since the epoch.
+     * @param file       The file to write.
+     * @param listener   Receives the outcome on the main thread.
+     *
+     * @author Shane Spoor
+     */
+    public void exportTracks(final int format, int[] clientKeys, long from, long to, final File file,
+                             final ExportListener listener)
+    {
+        final TrackExporter export = new TrackExporter(store.snapshot(), clientKeys, from, to);
+        exporter.execute(new Runnable()
+        {
+            public void run()
+            {
+                long   start = System.currentTimeMillis();
+                String failure;
+                try
+                {
+                    final long points  = export.export(format, file);
+                    final long elapsed = System.currentTimeMillis() - start;
+                    mainHandler.post(new Runnable()
+                    {
+                        public void run()
+                        {
+                            listener.onExportFinished(file, points, elapsed, export.isTruncated());
+                        }
+                    });
+                    return;
+                } catch (IOException e) {
+                    failure = e.getMessage();
+                } catch (RuntimeException e) {
+                    failure = e.toString();
+                }
+
+                final String message = "Export failure: " + failure + "\n";
+                mainHandler.post(new Runnable()
+                {
+                    public void run()
+                    {
+                        listener.onExportFailure(message);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Returns the fan-out that rebroadcasts fixes to viewers.
+     *
+     * @return The fan-out.
+     */
+    public SubscriberFanOut getFanOut()
+    {
+        return fanOut;
+    }
+
+    /**
+     * Loads a fence set on a background thread and, once it's read, replaces the current fences with
+     * it. The outcome is reported to the server listeners as a message or an error. See
+     * {@link GeofenceEngine#load} for the file format.
+     *
+     * @param file The file to read.
+     *
+     * @author Shane Spoor
+     */
+    public void loadGeofences(final File file)
+    {
+        exporter.execute(new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    List<Geofence> fences = GeofenceEngine.load(file);
+                    geofences.setFences(fences);
+                    postServerMessage("Loaded " + fences.size() + " geofences from " + file.getName() + "\n");
+                } catch (IOException e) {
+                    postServerError(null, "Geofence failure: " + e.getMessage() + "\n");
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns the limiter applied to each client's datagrams. Its policy may be changed at any time,
+     * and its counters show how many datagrams were dropped from each client.
+     *
+     * @return The limiter.
+     */
+    public IngestLimiter getLimiter()
+    {
+        return limiter;
+    }
+
+    /**
+     * Registers a listener to be called on the receiving thread for every fix.
+     *
+     * @param listener The listener.
+     */
+    public void addFixListener(FixListener listener)
+    {
+        fixListeners.addIfAbsent(listener);
+    }
+
+    /**
+     * Unregisters a fix listener.
+     *
+     * @param listener The listener.
+     */
+    public void removeFixListener(FixListener listener)
+    {
+        fixListeners.remove(listener);
+    }
+
+    /**
+     * Registers a listener to be called on the main thread with the server's output.
+     *
+     * @param listener The listener.
+     */
+    public void addServerListener(ServerListener listener)
+    {
+        serverListeners.addIfAbsent(listener);
+    }
+
+    /**
+     * Unregisters a server listener.
+     *
+     * @param listener The listener.
+     */
+    public void removeServerListener(ServerListener listener)
+    {
+        serverListeners.remove(listener);
+    }
+
+    /**
+     * Starts a new sending session for the client, which probes the servers and sends the client's
+     * fixes to the ones it chooses, and keeps the service in the foreground while sending. If the
+     * client is already sending, the current session is shut down once its queued fixes are sent and
+     * the new one takes over.
+     *
+     * @param pool     The servers to choose between.
+     * @param listener Receives send failures and reports on the servers; may be null.
+     *
+     * @author Shane Spoor
+     */
+    public void startSending(ServerPool pool, SendListener listener)
+    {
+        if(sender != null)
+            sender.shutdown();
+        sender = new SendSession(pool, listener);
+        sender.start();
+        updateForeground();
+    }
+
+    /**
+     * Stops the client's sending session once any queued fixes have been sent.
+     *
+     * @author Shane Spoor
+     */
+    public void stopSending()
+    {
+        shutdownSender();
+        updateForeground();
+    }
+
+    /**
+     * Returns whether the client is sending.
+     *
+     * @return True if the client is sending.
+     */
+    public boolean isSending()
+    {
+        return sender != null;
+    }
+
+    /**
+     * Queues data to be sent to the servers in use (see {@link ServerPool}).
+     *
+     * The data is sent on the sending session's thread through a socket that's kept open for as long
+     * as the session lasts. Failures are reported to the send listener; a failure to send to one
+     * server doesn't stop the data going to the other when duplicating. Nothing is sent if the client
+     * isn't sending; the servers and the listener are only ever chosen by startSending.
+     *
+     * @param data The data to send.
+     *
+     * @author Shane Spoor
+     */
+    public void send(String data)
+    {
+        if(sender != null)
+            sender.send(data);
+    }
+
+    /**
+     * Returns a server's address if its host has been resolved.
+     *
+     * @throws IOException If it hasn't been yet.
+     */
+    private static InetAddress resolved(ServerPool.Endpoint e) throws IOException
+    {
+        InetAddress addr = e.address;
+        if(addr == null)
+            throw new IOException("host not resolved yet");
+        return addr;
+    }
+
+    /**
+     * Returns the number of the client's datagrams sent successfully since the service was created.
+     *
+     * @return The number of datagrams sent.
+     */
+    public long getDatagramsSent()
+    {
+        return datagramsSent.get();
+    }
+
+    /**
+     * Runs a task on the main thread once every fix queued so far has been sent (or has failed). If
+     * the client isn't sending, the task is run straight away.
+     *
+     * @param task The task to run.
+     */
+    public void whenSent(final Runnable task)
+    {
+        if(sender == null)
+        {
+            task.run();
+            return;
+        }
+        sender.whenSent(task);
+    }
+
+    /**
+     * Passes a fix to the fix listeners, records it, and posts it to the server listeners.
+     * Called on the receiving thread.
+     *
+     * If the main thread falls behind, global back-pressure is applied through the limiter until it
+     * catches up.
+     */
+    private void dispatch(final Fix fix)
+    {
+        long dispatch = Tracer.begin("server.dispatch");
+        long trace    = Tracer.begin("server.fanOut");
+        fanOut.onFix(fix);
+        Tracer.end(trace);
+        trace = Tracer.begin("server.fixListeners");
+        for(FixListener l : fixListeners)
+            l.onFix(fix);
+        Tracer.end(trace);
+        trace = Tracer.begin("server.store");
+        store.add(fix);
+        log.add(fix);
+        Tracer.end(trace);
+        Tracer.end(dispatch);
+
+        int backlog = uiBacklog.incrementAndGet();
+        if(backlog >= BACKLOG_HIGH)
+            limiter.setPressure(true);
+        mainHandler.post(new Runnable()
+        {
+            public void run()
+            {
+                if(uiBacklog.decrementAndGet() <= BACKLOG_LOW)
+                    limiter.setPressure(false);
+                for(ServerListener l : serverListeners)
+                    l.onFixReceived(fix);
+            }
+        });
+    }
+
+    /**
+     * Reports a failure on the main thread. If the failure is a receiver's, the server is stopped if
+     * that receiver is still the current one.
+     *
+     * @param failed The receiver that failed, or null if the failure wasn't a receiver's.
+     */
+    private void postServerError(final Receiver failed, final String message)
+    {
+        log.add(message);
+        mainHandler.post(new Runnable()
+        {
+            public void run()
+            {
+                if(failed != null && receiver == failed)
+                {
+                    receiver = null;
+                    updateForeground();
+                }
+                for(ServerListener l : serverListeners)
+                    l.onServerError(message);
+            }
+        });
+    }
+
+    /**
+     * Passes an informational message to the server listeners on the main thread.
+     */
+    private void postServerMessage(final String message)
+    {
+        log.add(message);
+        mainHandler.post(new Runnable()
+        {
+            public void run()
+            {
+                for(ServerListener l : serverListeners)
+                    l.onServerMessage(message);
+            }
+        });
+    }
+
+    /**
+     * Passes a report on the servers to a send listener on the main thread.
+     *
+     * @param l The listener, or null if there is none.
+     */
+    private void postSendStatus(final SendListener l, final String message)
+    {
+        if(l == null)
+            return;
+        mainHandler.post(new Runnable()
+        {
+            public void run()
+            {
+                l.onSendStatus(message);
+            }
+        });
+    }
+
+    /**
+     * Reports a send failure to a send listener on the main thread.
+     *
+     * @param l The listener, or null if there is none.
+     */
+    private void postSendFailure(final SendListener l, final String message)
+    {
+        if(l == null)
+            return;
+        mainHandler.post(new Runnable()
+        {
+            public void run()
+            {
+                l.onSendFailure(message);
+            }
+        });
+    }
+
+    /**
+     * Shuts down the sending session, closing its socket after the queued sends.
+     */
+    private void shutdownSender()
+    {
+        if(sender == null)
+            return;
+        sender.shutdown();
+        sender = null;
+    }
+
+    /**
+     * Enters the foreground while the server or the client is active, and stops the service once
+     * neither is.
+     */
+    private void updateForeground()
+    {
+        if(receiver == null && sender == null)
+        {
+            stopForeground(true);
+            stopSelf();
+            return;
+        }
+
+        // Start ourselves so that we outlive the activities that bound to us.
+        startService(new Intent(this, TrackingService.class));
+
+        String text;
+        if(receiver != null && sender != null)
+            text = getString(R.string.service_receiving_and_sending, serverPort);
+        else if(receiver != null)
+            text = getString(R.string.service_receiving, serverPort);
+        else
+            text = getString(R.string.service_sending);
+
+        Notification notification = new Notification.Builder(this)
+                .setContentTitle(getString(R.string.app_name))
+                .setContentText(text)
+                .setSmallIcon(R.drawable.ic_launcher)
+                .setOngoing(true)
+                .setContentIntent(PendingIntent.getActivity(this, 0,
+                        new Intent(this, receiver != null ? ServerActivity.class : ClientActivity.class), 0))
+                .getNotification();
+        startForeground(NOTIFICATION_ID, notification);
+    }
+}
@@ -0,0 +1,157 @@
+package ca.bcit.A00852406.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A buffered writer of ASCII text to an NIO channel.
+ *
+ * Characters are narrowed straight into a fixed byte buffer, which is written to the channel
+ * whenever it fills, so the amount of memory used doesn't depend on the amount of text written.
+ * Numbers are formatted directly into the buffer rather than through intermediate strings.
+ * Characters outside ASCII are written as '?'.
+ *
+ * @author Shane Spoor
+ */
+public class AsciiChannelWriter implements Closeable
+{
+    private static final int    BUFFER_SIZE = 64 * 1024;    /** The size of the output buffer. */
+    private static final long[] POW10       = {1, 10, 100, 1000, 10000, 100000, 1000000, 10000000, 100000000, 1000000000};
+
+    private final WritableByteChannel   channel;                            /** The channel to write to. */
+    private final byte[]                buf     = new byte[BUFFER_SIZE];    /** The output buffer. */
+    private final ByteBuffer            wrapped = ByteBuffer.wrap(buf);     /** The output buffer as seen by the channel. */
+    private final char[]                digits  = new char[20];             /** Scratch space for formatting numbers. */
+    private int                         pos;                                /** The number of bytes in the buffer. */
+
+    /**
+     * Creates a writer. Closing the writer closes the channel.
+     *
+     * @param channel The channel to write to.
+     */
+    public AsciiChannelWriter(WritableByteChannel channel)
+    {
+        this.channel = channel;
+    }
+
+    /**
+     * Writes a character.
+     *
+     * @param c The character.
+     * @return This writer.
+     * @throws IOException If the channel can't be written to.
+     */
+    public AsciiChannelWriter append(char c) throws IOException
+    {
+        if(pos == BUFFER_SIZE)
+            flush();
+        buf[pos++] = (byte)(c < 0x80 ? c : '?');
+        return this;
+    }
+
+    /**
+     * Writes a sequence of characters.
+     *
+     * @param s The characters.
+     * @return This writer.
+     * @throws IOException If the channel can't be written to.
+     */
+    public AsciiChannelWriter append(CharSequence s) throws IOException
+    {
+        for(int i = 0, n = s.length(); i < n; i++)
+        {
+            if(pos == BUFFER_SIZE)
+                flush();
+            char c = s.charAt(i);
+            buf[pos++] = (byte)(c < 0x80 ? c : '?');
+        }
+        return this;
+    }
+
+    /**
+     * Writes an integer in decimal.
+     *
+     * @param v The integer.
+     * @return This writer.
+     * @throws IOException If the channel can't be written to.
+     */
+    public AsciiChannelWriter append(long v) throws IOException
+    {
+        if(v == Long.MIN_VALUE)
+            return append(Long.toString(v));
+        if(v < 0)
+        {
+            append('-');
+            v = -v;
+        }
+        int n = 0;
+        do
+        {
+            digits[n++] = (char)('0' + v % 10);
+            v /= 10;
+        } while(v != 0);
+        while(n > 0)
+            append(digits[--n]);
+        return this;
+    }
+
+    /**
+     * Writes a number with a fixed number of decimal places, rounding half away from zero.
+     *
+     * @param v        The number; NaN and infinities are written as 0.
+     * @param decimals The number of decimal places, from 0 to 9.
+     * @return This writer.
+     * @throws IOException If the channel can't be written to.
+     */
+    public AsciiChannelWriter appendFixed(double v, int decimals) throws IOException
+    {
+        if(Double.isNaN(v) || Double.isInfinite(v))
+            v = 0;
+        long scale  = POW10[decimals];
+        long scaled = Math.round(Math.abs(v) * scale);
+        if(v < 0 && scaled != 0)
+            append('-');
+        append(scaled / scale);
+        if(decimals == 0)
+            return this;
+
+        append('.');
+        long frac = scaled % scale;
+        for(int i = decimals - 1; i >= 0; i--)
+        {
+            append((char)('0' + frac / POW10[i]));
+            frac %= POW10[i];
+        }
+        return this;
+    }
+
+    /**
+     * Writes the buffered bytes to the channel.
+     *
+     * @throws IOException If the channel can't be written to.
+     */
+    public void flush() throws IOException
+    {
+        wrapped.clear().limit(pos);
+        while(wrapped.hasRemaining())
+            channel.write(wrapped);
+        pos = 0;
+    }
+
+    /**
+     * Flushes the buffer and closes the channel.
+     *
+     * @throws IOException If the channel can't be written to or closed.
+     */
+    public void close() throws IOException
+    {
+        try
+        {
+            flush();
+        } finally {
+            channel.close();
+        }
+    }
+}
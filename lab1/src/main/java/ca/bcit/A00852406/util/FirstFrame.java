@@ -0,0 +1,75 @@
+package ca.bcit.A00852406.util;
+
+import android.os.SystemClock;
+import android.view.View;
+import android.view.ViewTreeObserver;
+
+/**
+ * Reports how long after a starting point a view's first frame was drawn, and gives deferred startup
+ * work a place to run once it has been.
+ *
+ * The listener is called from a message posted while the first frame is being prepared, so it runs
+ * after that frame has been drawn and the main thread has become free to handle input; the time it's
+ * given is when it's called, i.e. the time to the first interactive frame. Work the listener starts
+ * on the main thread delays the second frame rather than the first.
+ *
+ * @author Shane Spoor
+ */
+public final class FirstFrame implements ViewTreeObserver.OnPreDrawListener, Runnable
+{
+    /**
+     * Receives the time to the first interactive frame on the main thread.
+     */
+    public interface Listener
+    {
+        /**
+         * Called once, after the first frame has been drawn.
+         *
+         * @param elapsedMs The time since the starting point, in milliseconds.
+         */
+        void onFirstFrame(long elapsedMs);
+    }
+
+    private final View      view;       /** The view whose first frame is awaited. */
+    private final long      start;      /** The uptime the elapsed time is measured from. */
+    private final Listener  listener;   /** Receives the elapsed time. */
+
+    private FirstFrame(View view, long start, Listener listener)
+    {
+        this.view       = view;
+        this.start      = start;
+        this.listener   = listener;
+    }
+
+    /**
+     * Calls a listener once a view's first frame has been drawn.
+     *
+     * @param view     The view; usually the window's decor view.
+     * @param start    The uptime to measure from, as returned by SystemClock.uptimeMillis.
+     * @param listener Receives the time to the first interactive frame.
+     */
+    public static void watch(View view, long start, Listener listener)
+    {
+        view.getViewTreeObserver().addOnPreDrawListener(new FirstFrame(view, start, listener));
+    }
+
+    /**
+     * Stops watching and schedules the listener to run after the frame being prepared is drawn.
+     *
+     * @return True, so the frame is drawn.
+     */
+    public boolean onPreDraw()
+    {
+        view.getViewTreeObserver().removeOnPreDrawListener(this);
+        view.post(this);
+        return true;
+    }
+
+    /**
+     * Calls the listener with the time since the starting point.
+     */
+    public void run()
+    {
+        listener.onFirstFrame(SystemClock.uptimeMillis() - start);
+    }
+}
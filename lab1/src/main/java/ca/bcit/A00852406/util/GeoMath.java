@@ -0,0 +1,72 @@
+package ca.bcit.A00852406.util;
+
+/**
+ * Distance calculations on the Earth's surface.
+ *
+ * @author Shane Spoor
+ */
+public final class GeoMath
+{
+    public  static final double EARTH_RADIUS_M   = 6371008.8;                /** The mean radius of the Earth in metres. */
+    public  static final double METRES_PER_DEG   = EARTH_RADIUS_M * Math.PI / 180; /** The length of one degree of latitude in metres. */
+    private static final double DEG_TO_RAD       = Math.PI / 180;
+
+    private GeoMath()
+    {}
+
+    /**
+     * Returns the great-circle distance between two points using the haversine formula.
+     *
+     * @param lat1 The first point's latitude in degrees.
+     * @param lon1 The first point's longitude in degrees.
+     * @param lat2 The second point's latitude in degrees.
+     * @param lon2 The second point's longitude in degrees.
+     * @return The distance in metres.
+     */
+    public static double haversine(double lat1, double lon1, double lat2, double lon2)
+    {
+        double dLat = (lat2 - lat1) * DEG_TO_RAD;
+        double dLon = (lon2 - lon1) * DEG_TO_RAD;
+        double sLat = Math.sin(dLat / 2), sLon = Math.sin(dLon / 2);
+        double a    = sLat * sLat + Math.cos(lat1 * DEG_TO_RAD) * Math.cos(lat2 * DEG_TO_RAD) * sLon * sLon;
+        return 2 * EARTH_RADIUS_M * Math.asin(Math.min(1, Math.sqrt(a)));
+    }
+
+    /**
+     * Returns the approximate distance between two nearby points using an equirectangular projection.
+     *
+     * This needs one cosine and one square root instead of the haversine's four trigonometric calls.
+     * The error is well under 0.1% for points a few kilometres apart, which covers consecutive fixes
+     * and geofence radii; use {@link #haversine} for long distances.
+     *
+     * @param lat1 The first point's latitude in degrees.
+     * @param lon1 The first point's longitude in degrees.
+     * @param lat2 The second point's latitude in degrees.
+     * @param lon2 The second point's longitude in degrees.
+     * @return The distance in metres.
+     */
+    public static double fastDistance(double lat1, double lon1, double lat2, double lon2)
+    {
+        double dLon = lon2 - lon1;
+        if(dLon > 180)
+            dLon -= 360;
+        else if(dLon < -180)
+            dLon += 360;
+        double x = dLon * Math.cos((lat1 + lat2) * (DEG_TO_RAD / 2));
+        double y = lat2 - lat1;
+        return Math.sqrt(x * x + y * y) * METRES_PER_DEG;
+    }
+
+    /**
+     * Returns how many degrees of longitude span a distance at a given latitude.
+     *
+     * @param metres The distance in metres.
+     * @param lat    The latitude in degrees.
+     * @return The span in degrees, capped at 360 near the poles.
+     */
+    public static double lonSpan(double metres, double lat)
+    {
+        double cos = Math.cos(lat * DEG_TO_RAD);
+        return cos < 1e-9 ? 360 : Math.min(360, metres / (METRES_PER_DEG * cos));
+    }
+}
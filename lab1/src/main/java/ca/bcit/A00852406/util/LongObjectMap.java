@@ -0,0 +1,140 @@
+package ca.bcit.A00852406.util;
+
+/**
+ * A hash map from primitive longs to objects.
+ *
+ * Keys are stored unboxed in an open-addressed table with linear probing, so lookups don't allocate.
+ * Entries can't be removed individually, only all at once with {@link #clear}. This class is not
+ * thread-safe.
+ *
+ * @param <V> The type of the values.
+ *
+ * @author Shane Spoor
+ */
+public class LongObjectMap<V>
+{
+    private long[]      keys;   /** The keys; a slot is empty if its value is null. */
+    private Object[]    values; /** The values. */
+    private int         size;   /** The number of entries. */
+
+    /**
+     * Creates an empty map.
+     */
+    public LongObjectMap()
+    {
+        keys    = new long[16];
+        values  = new Object[16];
+    }
+
+    /**
+     * Returns the value for a key.
+     *
+     * @param key The key.
+     * @return The value, or null if there is none.
+     */
+    @SuppressWarnings("unchecked")
+    public V get(long key)
+    {
+        int mask = keys.length - 1;
+        for(int i = hash(key) & mask; values[i] != null; i = (i + 1) & mask)
+            if(keys[i] == key)
+                return (V)values[i];
+        return null;
+    }
+
+    /**
+     * Sets the value for a key.
+     *
+     * @param key   The key.
+     * @param value The value; may not be null.
+     */
+    public void put(long key, V value)
+    {
+        if(2 * (size + 1) > keys.length)
+            grow();
+        int mask = keys.length - 1;
+        int i    = hash(key) & mask;
+        while(values[i] != null && keys[i] != key)
+            i = (i + 1) & mask;
+        if(values[i] == null)
+            size++;
+        keys[i]     = key;
+        values[i]   = value;
+    }
+
+    /**
+     * Returns the number of entries.
+     *
+     * @return The number of entries.
+     */
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * Removes every entry.
+     */
+    public void clear()
+    {
+        keys    = new long[16];
+        values  = new Object[16];
+        size    = 0;
+    }
+
+    /**
+     * Calls a visitor with every entry, in no particular order.
+     *
+     * @param visitor Receives each entry.
+     */
+    @SuppressWarnings("unchecked")
+    public void forEach(Visitor<? super V> visitor)
+    {
+        for(int i = 0; i < keys.length; i++)
+            if(values[i] != null)
+                visitor.visit(keys[i], (V)values[i]);
+    }
+
+    /**
+     * Receives the entries of a map.
+     *
+     * @param <V> The type of the values.
+     */
+    public interface Visitor<V>
+    {
+        /**
+         * Called once for each entry.
+         *
+         * @param key   The entry's key.
+         * @param value The entry's value.
+         */
+        void visit(long key, V value);
+    }
+
+    /**
+     * Doubles the table and reinserts every entry.
+     */
+    @SuppressWarnings("unchecked")
+    private void grow()
+    {
+        long[]   oldKeys   = keys;
+        Object[] oldValues = values;
+        keys    = new long[oldKeys.length * 2];
+        values  = new Object[oldKeys.length * 2];
+        size    = 0;
+        for(int i = 0; i < oldKeys.length; i++)
+            if(oldValues[i] != null)
+                put(oldKeys[i], (V)oldValues[i]);
+    }
+
+    /**
+     * Mixes the bits of a key (the finaliser from MurmurHash3).
+     */
+    private static int hash(long key)
+    {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return (int)key;
+    }
+}
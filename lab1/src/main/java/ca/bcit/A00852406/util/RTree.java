@@ -0,0 +1,489 @@
+package ca.bcit.A00852406.util;
+
+import java.util.ArrayList;
+
+/**
+ * An in-memory R-tree of axis-aligned rectangles (Guttman, quadratic split).
+ *
+ * Each entry is a bounding box in (x, y) = (longitude, latitude) space plus an arbitrary value.
+ * Point queries visit only the subtrees whose boxes contain the point, so the cost of a lookup
+ * grows with the log of the number of entries rather than linearly. Boxes are kept in flat
+ * primitive arrays rather than one object per entry.
+ *
+ * This class is not thread-safe; callers that share a tree must synchronise on it.
+ *
+ * @param <T> The type of value stored with each rectangle.
+ *
+ * @author Shane Spoor
+ */
+public class RTree<T>
+{
+    private static final int MAX_ENTRIES = 16; /** The maximum number of entries in a node before it's split. */
+    private static final int MIN_ENTRIES = 4;  /** The minimum number of entries in a non-root node. */
+
+    /**
+     * Receives the values found by a query.
+     *
+     * @param <T> The type of value stored in the tree.
+     */
+    public interface Visitor<T>
+    {
+        /**
+         * Called once for every entry matching the query.
+         *
+         * @param value The value stored with the matching rectangle.
+         */
+        void visit(T value);
+    }
+
+    /**
+     * A node in the tree. Slot <i>i</i>'s box is stored at box[4i .. 4i + 3] as minX, minY, maxX, maxY;
+     * the slot holds either a child node (inner nodes) or a value (leaves). One spare slot is kept so
+     * that a node may temporarily overflow before it's split.
+     */
+    private static final class Node
+    {
+        final boolean   leaf;                                        /** Whether the slots hold values rather than nodes. */
+        final double[]  box     = new double[4 * (MAX_ENTRIES + 1)]; /** The bounding boxes of the slots. */
+        final Object[]  slot    = new Object[MAX_ENTRIES + 1];       /** The children or values. */
+        Node            parent;                                      /** This node's parent, or null for the root. */
+        int             count;                                       /** The number of slots in use. */
+
+        Node(boolean leaf)
+        {
+            this.leaf = leaf;
+        }
+    }
+
+    private Node    root = new Node(true);  /** The root of the tree. */
+    private int     size;                   /** The number of values in the tree. */
+
+    /**
+     * Returns the number of values stored in the tree.
+     *
+     * @return The number of values stored in the tree.
+     */
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * Removes every entry from the tree.
+     */
+    public void clear()
+    {
+        root = new Node(true);
+        size = 0;
+    }
+
+    /**
+     * Adds a rectangle and its value to the tree.
+     *
+     * @param minX  The rectangle's west edge.
+     * @param minY  The rectangle's south edge.
+     * @param maxX  The rectangle's east edge.
+     * @param maxY  The rectangle's north edge.
+     * @param value The value to associate with the rectangle.
+     */
+    public void insert(double minX, double minY, double maxX, double maxY, T value)
+    {
+        Node leaf = chooseLeaf(minX, minY, maxX, maxY);
+        addSlot(leaf, minX, minY, maxX, maxY, value);
+        adjustTree(leaf);
+        size++;
+    }
+
+    /**
+     * Removes a value from the tree.
+     *
+     * The rectangle must be the one the value was inserted with; it's used to limit the search.
+     *
+     * @param minX  The rectangle's west edge.
+     * @param minY  The rectangle's south edge.
+     * @param maxX  The rectangle's east edge.
+     * @param maxY  The rectangle's north edge.
+     * @param value The value to remove.
+     * @return True if the value was found and removed, false otherwise.
+     */
+    public boolean remove(double minX, double minY, double maxX, double maxY, T value)
+    {
+        ArrayList<Node> stack = new ArrayList<Node>();
+        stack.add(root);
+        while(!stack.isEmpty())
+        {
+            Node n = stack.remove(stack.size() - 1);
+            for(int i = 0; i < n.count; i++)
+            {
+                int b = 4 * i;
+                if(!(n.box[b] <= minX && n.box[b + 1] <= minY && n.box[b + 2] >= maxX && n.box[b + 3] >= maxY))
+                    continue;
+                if(!n.leaf)
+                    stack.add((Node)n.slot[i]);
+                else if(n.slot[i] == value || n.slot[i].equals(value))
+                {
+                    removeSlot(n, i);
+                    condenseTree(n);
+                    size--;
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Visits every value whose rectangle contains the given point (edges inclusive).
+     *
+     * @param x       The point's longitude.
+     * @param y       The point's latitude.
+     * @param visitor Receives each matching value.
+     */
+    public void search(double x, double y, Visitor<? super T> visitor)
+    {
+        search(x, y, x, y, visitor);
+    }
+
+    /**
+     * Visits every value whose rectangle intersects the given rectangle (edges inclusive).
+     *
+     * @param minX    The query's west edge.
+     * @param minY    The query's south edge.
+     * @param maxX    The query's east edge.
+     * @param maxY    The query's north edge.
+     * @param visitor Receives each matching value.
+     */
+    @SuppressWarnings("unchecked")
+    public void search(double minX, double minY, double maxX, double maxY, Visitor<? super T> visitor)
+    {
+        Node[] stack = new Node[16];
+        int    top   = 0;
+        stack[top++] = root;
+        while(top > 0)
+        {
+            Node n = stack[--top];
+            for(int i = 0; i < n.count; i++)
+            {
+                int b = 4 * i;
+                if(n.box[b] > maxX || n.box[b + 2] < minX || n.box[b + 1] > maxY || n.box[b + 3] < minY)
+                    continue;
+                if(n.leaf)
+                    visitor.visit((T)n.slot[i]);
+                else
+                {
+                    if(top == stack.length)
+                    {
+                        Node[] grown = new Node[top * 2];
+                        System.arraycopy(stack, 0, grown, 0, top);
+                        stack = grown;
+                    }
+                    stack[top++] = (Node)n.slot[i];
+                }
+            }
+        }
+    }
+
+    /**
+     * Descends from the root to the leaf whose box needs the least enlargement to hold the rectangle.
+     */
+    private Node chooseLeaf(double minX, double minY, double maxX, double maxY)
+    {
+        Node n = root;
+        while(!n.leaf)
+        {
+            int    best         = 0;
+            double bestGrowth   = Double.MAX_VALUE;
+            double bestArea     = Double.MAX_VALUE;
+            for(int i = 0; i < n.count; i++)
+            {
+                int    b      = 4 * i;
+                double area   = area(n.box[b], n.box[b + 1], n.box[b + 2], n.box[b + 3]);
+                double growth = area(Math.min(n.box[b], minX), Math.min(n.box[b + 1], minY),
+                                     Math.max(n.box[b + 2], maxX), Math.max(n.box[b + 3], maxY)) - area;
+                if(growth < bestGrowth || (growth == bestGrowth && area < bestArea))
+                {
+                    best        = i;
+                    bestGrowth  = growth;
+                    bestArea    = area;
+                }
+            }
+            n = (Node)n.slot[best];
+        }
+        return n;
+    }
+
+    /**
+     * Walks from <i>n</i> to the root, splitting overflowing nodes and refreshing the parents' boxes.
+     */
+    private void adjustTree(Node n)
+    {
+        while(n != null)
+        {
+            Node sibling = n.count > MAX_ENTRIES ? split(n) : null;
+            Node parent  = n.parent;
+
+            if(parent == null)
+            {
+                if(sibling != null)
+                {
+                    Node newRoot = new Node(false);
+                    addChild(newRoot, n);
+                    addChild(newRoot, sibling);
+                    root = newRoot;
+                }
+                return;
+            }
+
+            updateChildBox(parent, n);
+            if(sibling != null)
+                addChild(parent, sibling);
+            n = parent;
+        }
+    }
+
+    /**
+     * Removes underfull nodes on the path from <i>leaf</i> to the root and reinserts their entries.
+     */
+    @SuppressWarnings("unchecked")
+    private void condenseTree(Node leaf)
+    {
+        ArrayList<Node> orphans = new ArrayList<Node>();
+        Node n = leaf;
+        while(n.parent != null)
+        {
+            Node parent = n.parent;
+            if(n.count < MIN_ENTRIES)
+            {
+                removeSlot(parent, indexOf(parent, n));
+                orphans.add(n);
+            }
+            else
+                updateChildBox(parent, n);
+            n = parent;
+        }
+
+        while(!root.leaf && root.count == 1)
+        {
+            root        = (Node)root.slot[0];
+            root.parent = null;
+        }
+        if(!root.leaf && root.count == 0)
+            root = new Node(true);
+
+        ArrayList<Node> stack = orphans;
+        while(!stack.isEmpty())
+        {
+            Node o = stack.remove(stack.size() - 1);
+            for(int i = 0; i < o.count; i++)
+            {
+                int b = 4 * i;
+                if(o.leaf)
+                {
+                    Node target = chooseLeaf(o.box[b], o.box[b + 1], o.box[b + 2], o.box[b + 3]);
+                    addSlot(target, o.box[b], o.box[b + 1], o.box[b + 2], o.box[b + 3], o.slot[i]);
+                    adjustTree(target);
+                }
+                else
+                    stack.add((Node)o.slot[i]);
+            }
+        }
+    }
+
+    /**
+     * Splits an overflowing node in two using Guttman's quadratic algorithm. The node keeps one group
+     * and the returned sibling gets the other.
+     */
+    private Node split(Node n)
+    {
+        final int total = n.count;
+        double[]  box   = new double[4 * total];
+        Object[]  slot  = new Object[total];
+        System.arraycopy(n.box, 0, box, 0, 4 * total);
+        System.arraycopy(n.slot, 0, slot, 0, total);
+
+        // Pick the two entries that would waste the most area if they were grouped together.
+        int    seedA = 0, seedB = 1;
+        double worst = -Double.MAX_VALUE;
+        for(int i = 0; i < total; i++)
+        {
+            for(int j = i + 1; j < total; j++)
+            {
+                double waste = area(Math.min(box[4 * i], box[4 * j]), Math.min(box[4 * i + 1], box[4 * j + 1]),
+                                    Math.max(box[4 * i + 2], box[4 * j + 2]), Math.max(box[4 * i + 3], box[4 * j + 3]))
+                             - area(box[4 * i], box[4 * i + 1], box[4 * i + 2], box[4 * i + 3])
+                             - area(box[4 * j], box[4 * j + 1], box[4 * j + 2], box[4 * j + 3]);
+                if(waste > worst)
+                {
+                    worst = waste;
+                    seedA = i;
+                    seedB = j;
+                }
+            }
+        }
+
+        Node sibling = new Node(n.leaf);
+        sibling.parent = n.parent;
+        n.count = 0;
+        java.util.Arrays.fill(n.slot, null);
+
+        boolean[] assigned = new boolean[total];
+        double[]  boxA     = {box[4 * seedA], box[4 * seedA + 1], box[4 * seedA + 2], box[4 * seedA + 3]};
+        double[]  boxB     = {box[4 * seedB], box[4 * seedB + 1], box[4 * seedB + 2], box[4 * seedB + 3]};
+        moveSlot(n, box, slot, seedA);
+        moveSlot(sibling, box, slot, seedB);
+        assigned[seedA] = assigned[seedB] = true;
+
+        int remaining = total - 2;
+        while(remaining > 0)
+        {
+            Node    target;
+            double[] targetBox;
+            int     pick = -1;
+
+            if(n.count + remaining <= MIN_ENTRIES || sibling.count + remaining <= MIN_ENTRIES)
+            {
+                // One group needs every remaining entry to reach the minimum fill.
+                target    = n.count + remaining <= MIN_ENTRIES ? n : sibling;
+                targetBox = target == n ? boxA : boxB;
+                for(int i = 0; i < total; i++)
+                    if(!assigned[i])
+                    {
+                        pick = i;
+                        break;
+                    }
+            }
+            else
+            {
+                // Pick the entry with the strongest preference for one group.
+                double bestDiff = -1, growA = 0, growB = 0;
+                for(int i = 0; i < total; i++)
+                {
+                    if(assigned[i])
+                        continue;
+                    double ga = growth(boxA, box, i), gb = growth(boxB, box, i);
+                    double diff = Math.abs(ga - gb);
+                    if(diff > bestDiff)
+                    {
+                        bestDiff = diff;
+                        pick     = i;
+                        growA    = ga;
+                        growB    = gb;
+                    }
+                }
+                double areaA = area(boxA[0], boxA[1], boxA[2], boxA[3]);
+                double areaB = area(boxB[0], boxB[1], boxB[2], boxB[3]);
+                boolean toA  = growA < growB || (growA == growB && (areaA < areaB || (areaA == areaB && n.count <= sibling.count)));
+                target       = toA ? n : sibling;
+                targetBox    = toA ? boxA : boxB;
+            }
+
+            moveSlot(target, box, slot, pick);
+            targetBox[0] = Math.min(targetBox[0], box[4 * pick]);
+            targetBox[1] = Math.min(targetBox[1], box[4 * pick + 1]);
+            targetBox[2] = Math.max(targetBox[2], box[4 * pick + 2]);
+            targetBox[3] = Math.max(targetBox[3], box[4 * pick + 3]);
+            assigned[pick] = true;
+            remaining--;
+        }
+        return sibling;
+    }
+
+    /**
+     * Copies entry <i>i</i> of the split buffers into <i>target</i>, fixing the parent pointer of child nodes.
+     */
+    private static void moveSlot(Node target, double[] box, Object[] slot, int i)
+    {
+        addSlot(target, box[4 * i], box[4 * i + 1], box[4 * i + 2], box[4 * i + 3], slot[i]);
+        if(!target.leaf)
+            ((Node)slot[i]).parent = target;
+    }
+
+    /**
+     * Appends an entry to a node without checking for overflow.
+     */
+    private static void addSlot(Node n, double minX, double minY, double maxX, double maxY, Object value)
+    {
+        int b = 4 * n.count;
+        n.box[b]        = minX;
+        n.box[b + 1]    = minY;
+        n.box[b + 2]    = maxX;
+        n.box[b + 3]    = maxY;
+        n.slot[n.count] = value;
+        n.count++;
+    }
+
+    /**
+     * Removes entry <i>i</i> from a node by moving the last entry into its place.
+     */
+    private static void removeSlot(Node n, int i)
+    {
+        int last = n.count - 1;
+        if(i != last)
+        {
+            System.arraycopy(n.box, 4 * last, n.box, 4 * i, 4);
+            n.slot[i] = n.slot[last];
+        }
+        n.slot[last] = null;
+        n.count--;
+    }
+
+    /**
+     * Adds <i>child</i> to <i>parent</i> along with the box covering the child's entries.
+     */
+    private static void addChild(Node parent, Node child)
+    {
+        child.parent = parent;
+        addSlot(parent, 0, 0, 0, 0, child);
+        updateChildBox(parent, child);
+    }
+
+    /**
+     * Recomputes the box that <i>parent</i> stores for <i>child</i>.
+     */
+    private static void updateChildBox(Node parent, Node child)
+    {
+        int b = 4 * indexOf(parent, child);
+        double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE, maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+        for(int i = 0; i < child.count; i++)
+        {
+            int c = 4 * i;
+            minX = Math.min(minX, child.box[c]);
+            minY = Math.min(minY, child.box[c + 1]);
+            maxX = Math.max(maxX, child.box[c + 2]);
+            maxY = Math.max(maxY, child.box[c + 3]);
+        }
+        parent.box[b]       = minX;
+        parent.box[b + 1]   = minY;
+        parent.box[b + 2]   = maxX;
+        parent.box[b + 3]   = maxY;
+    }
+
+    /**
+     * Returns the slot in which <i>parent</i> holds <i>child</i>.
+     */
+    private static int indexOf(Node parent, Node child)
+    {
+        for(int i = 0; i < parent.count; i++)
+            if(parent.slot[i] == child)
+                return i;
+        throw new IllegalStateException("Child not found in parent");
+    }
+
+    /**
+     * Returns how much the box <i>target</i> would grow to include entry <i>i</i> of <i>box</i>.
+     */
+    private static double growth(double[] target, double[] box, int i)
+    {
+        return area(Math.min(target[0], box[4 * i]), Math.min(target[1], box[4 * i + 1]),
+                    Math.max(target[2], box[4 * i + 2]), Math.max(target[3], box[4 * i + 3]))
+             - area(target[0], target[1], target[2], target[3]);
+    }
+
+    /**
+     * Returns the area of a rectangle.
+     */
+    private static double area(double minX, double minY, double maxX, double maxY)
+    {
+        return (maxX - minX) * (maxY - minY);
+    }
+}
@@ -0,0 +1,395 @@
+package ca.bcit.A00852406.util;
+
+import android.os.Build;
+import android.os.Trace;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Marks named sections of work so that their cost can be seen in a trace viewer.
+ *
+ * On Android 4.3 (API 18) and later, sections become platform trace markers, which show up in
+ * systrace and Perfetto alongside the system's own. Elsewhere (older devices, or plain JVMs running
+ * the code headless) each section is recorded in memory and the recording is written out as a Chrome
+ * JSON trace when tracing stops, which chrome://tracing and the Perfetto UI can both open.
+ *
+ * Sections are marked like this:
+ * <pre>
+ * long t = Tracer.begin("server.decode");
+ * ...
+ * Tracer.end(t);
+ * </pre>
+ * While tracing is off, begin does nothing but read one volatile flag and end nothing but compare
+ * the token. A section begun while tracing was off is never recorded, even if tracing is turned on
+ * before it ends, so turning tracing on or off at any time can't leave unbalanced markers. Any
+ * thread may mark sections.
+ *
+ * For a JSON trace, each thread records its sections into buffers of its own, so threads marking
+ * sections don't contend for a lock; the buffers are gathered when the trace is written. At most
+ * {@link #MAX_EVENTS} sections are recorded per trace, handed out to the threads a block at a time.
+ *
+ * @author Shane Spoor
+ */
+public final class Tracer
+{
+    public  static final long   OFF             = Long.MIN_VALUE; /** The token returned by {@link #begin} while tracing is off. */
+    private static final int    MAX_EVENTS      = 1 << 16;        /** The most sections recorded for a JSON trace; later ones are dropped. */
+    private static final int    BLOCK           = 1 << 10;        /** The number of sections a thread claims from MAX_EVENTS at a time. */
+    private static final boolean PLATFORM       = usePlatform();  /** Whether sections become platform trace markers. */
+
+    /**
+     * Receives the outcome of writing a JSON trace, on the thread that wrote it.
+     */
+    public interface Callback
+    {
+        /**
+         * Called when the trace has been written.
+         *
+         * @param file   The file written.
+         * @param events The number of sections in it.
+         */
+        void onTraceWritten(File file, int events);
+
+        /**
+         * Called when the trace couldn't be written.
+         *
+         * @param message A description of the failure.
+         */
+        void onTraceFailure(String message);
+    }
+
+    /**
+     * A thread's open sections while recording a JSON trace, innermost last, and where it records
+     * the sections that end.
+     */
+    private static final class OpenSections
+    {
+        String[]    names = new String[16]; /** The sections' names. */
+        int         depth;                  /** The number of open sections. */
+        ThreadEvents events;                /** The thread's sections in the current recording, or null if it hasn't recorded any. */
+    }
+
+    /**
+     * The sections one thread recorded for a JSON trace, as parallel arrays. Only that thread writes
+     * them; count is published after each section, so the writer can read the sections before it
+     * while the thread carries on.
+     */
+    private static final class ThreadEvents
+    {
+        final Recording     recording;                  /** The recording the sections belong to. */
+        final long          tid;                        /** The thread's ID. */
+        final String        thread;                     /** The thread's name. */
+        String[]            names   = new String[64];   /** The name of each section. */
+        long[]              starts  = new long[64];     /** When each section began, in nanoseconds. */
+        long[]              ends    = new long[64];     /** When each section ended, in nanoseconds. */
+        int                 limit;                      /** The number of sections the thread has claimed room for. */
+        volatile int        count;                      /** The number of sections recorded. */
+        volatile int        dropped;                    /** The number of sections not recorded for want of room. */
+
+        ThreadEvents(Recording recording, Thread t)
+        {
+            this.recording  = recording;
+            this.tid        = t.getId();
+            this.thread     = t.getName();
+        }
+
+        /**
+         * Records a section, claiming another block of room from the recording if need be.
+         */
+        void add(String name, long start, long end)
+        {
+            int n = count;
+            if(n == limit)
+            {
+                if(!recording.claim())
+                {
+                    dropped++;
+                    return;
+                }
+                limit += BLOCK;
+                if(limit > names.length)
+                {
+                    int size = Math.min(MAX_EVENTS, Math.max(limit, names.length * 2));
+                    names   = Arrays.copyOf(names, size);
+                    starts  = Arrays.copyOf(starts, size);
+                    ends    = Arrays.copyOf(ends, size);
+                }
+            }
+            names[n]  = name;
+            starts[n] = start;
+            ends[n]   = end;
+            count     = n + 1;
+        }
+    }
+
+    /**
+     * The sections recorded for a JSON trace, kept per thread.
+     */
+    private static final class Recording
+    {
+        final File                      file;                                       /** The file to write the trace to. */
+        final long                      origin  = System.nanoTime();                /** The time tracing started. */
+        final ArrayList<ThreadEvents>   threads = new ArrayList<ThreadEvents>();    /** Each thread's sections; guarded by the recording. */
+        final AtomicInteger             claimed = new AtomicInteger();              /** The room claimed by the threads, in sections. */
+
+        Recording(File file)
+        {
+            this.file = file;
+        }
+
+        /**
+         * Creates the buffer for a thread's sections.
+         */
+        synchronized ThreadEvents join(Thread t)
+        {
+            ThreadEvents e = new ThreadEvents(this, t);
+            threads.add(e);
+            return e;
+        }
+
+        /**
+         * Claims room for another BLOCK sections, if MAX_EVENTS hasn't been reached.
+         */
+        boolean claim()
+        {
+            return claimed.get() < MAX_EVENTS && claimed.addAndGet(BLOCK) <= MAX_EVENTS;
+        }
+
+        /**
+         * Returns the threads' buffers as they stand.
+         */
+        synchronized ThreadEvents[] threads()
+        {
+            return threads.toArray(new ThreadEvents[threads.size()]);
+        }
+    }
+
+    private static volatile boolean                 enabled;    /** Whether tracing is on. */
+    private static volatile Recording               recording;  /** The sections recorded for a JSON trace, or null; only changed under the class lock. */
+    private static final ThreadLocal<OpenSections>  open        = new ThreadLocal<OpenSections>()
+    {
+        @Override
+        protected OpenSections initialValue()
+        {
+            return new OpenSections();
+        }
+    };                                                          /** Each thread's open sections. */
+
+    private Tracer()
+    {}
+
+    /**
+     * Returns whether sections become platform trace markers rather than a JSON trace file.
+     *
+     * @return True if platform tracing is used.
+     */
+    public static boolean usesPlatformTrace()
+    {
+        return PLATFORM;
+    }
+
+    /**
+     * Returns whether tracing is on.
+     *
+     * @return True if tracing is on.
+     */
+    public static boolean isEnabled()
+    {
+        return enabled;
+    }
+
+    /**
+     * Turns tracing on. Does nothing if it's already on.
+     *
+     * @param file The file the JSON trace is written to when tracing stops; ignored when platform
+     *             tracing is used.
+     */
+    public static synchronized void start(File file)
+    {
+        if(enabled)
+            return;
+        if(!PLATFORM)
+            recording = new Recording(file);
+        enabled = true;
+    }
+
+    /**
+     * Turns tracing off. For a JSON trace, the recorded sections are written out on a new thread and
+     * the callback is called on that thread; with platform tracing the callback isn't called.
+     *
+     * @param callback Receives the outcome of writing the JSON trace; may be null.
+     */
+    public static synchronized void stop(final Callback callback)
+    {
+        if(!enabled)
+            return;
+        enabled = false;
+        final Recording done = recording;
+        recording = null;
+        if(done == null)
+            return;
+
+        new Thread("Tracer-writer")
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    int events = write(done);
+                    if(callback != null)
+                        callback.onTraceWritten(done.file, events);
+                } catch (IOException e) {
+                    if(callback != null)
+                        callback.onTraceFailure("Trace failure: " + e.getMessage() + "\n");
+                }
+            }
+        }.start();
+    }
+
+    /**
+     * Begins a section.
+     *
+     * @param name The section's name.
+     * @return A token to pass to {@link #end}.
+     */
+    public static long begin(String name)
+    {
+        if(!enabled)
+            return OFF;
+        if(PLATFORM)
+        {
+            Trace.beginSection(name);
+            return 0;
+        }
+        return beginRecorded(name);
+    }
+
+    /**
+     * Ends the section begun by the matching call to {@link #begin} on this thread.
+     *
+     * @param token The token returned by begin.
+     */
+    public static void end(long token)
+    {
+        if(token == OFF)
+            return;
+        if(PLATFORM)
+        {
+            Trace.endSection();
+            return;
+        }
+        endRecorded(token);
+    }
+
+    /**
+     * Remembers the name of a section being recorded and returns its start time as the token.
+     */
+    private static long beginRecorded(String name)
+    {
+        OpenSections o = open.get();
+        if(o.depth == o.names.length)
+            o.names = Arrays.copyOf(o.names, o.depth * 2);
+        o.names[o.depth++] = name;
+        return System.nanoTime();
+    }
+
+    /**
+     * Records a section that's ending in the thread's own buffer for the current recording, creating
+     * the buffer the first time the thread records a section in it.
+     */
+    private static void endRecorded(long start)
+    {
+        long         now  = System.nanoTime();
+        OpenSections o    = open.get();
+        String       name = o.names[--o.depth];
+        Recording    r    = recording;
+        if(r == null || start - r.origin < 0)
+            return;
+        ThreadEvents e = o.events;
+        if(e == null || e.recording != r)
+            o.events = e = r.join(Thread.currentThread());
+        e.add(name, start, now);
+    }
+
+    /**
+     * Writes a recording as a Chrome JSON trace of complete ("X") events, with the threads named.
+     *
+     * @return The number of sections written.
+     */
+    private static int write(Recording r) throws IOException
+    {
+        if(r.file == null)
+            throw new IOException("no trace file");
+
+        ThreadEvents[] threads = r.threads();
+        int[]          counts  = new int[threads.length];
+        int            dropped = 0, written = 0;
+        for(int t = 0; t < threads.length; t++)
+        {
+            counts[t] = threads[t].count;
+            dropped  += threads[t].dropped;
+        }
+
+        AsciiChannelWriter out = new AsciiChannelWriter(new FileOutputStream(r.file).getChannel());
+        try
+        {
+            out.append("{\"displayTimeUnit\":\"ms\",\"droppedEvents\":").append(dropped).append(",\"traceEvents\":[\n");
+            for(int t = 0; t < threads.length; t++)
+            {
+                ThreadEvents e = threads[t];
+                for(int i = 0; i < counts[t]; i++)
+                {
+                    out.append("{\"ph\":\"X\",\"pid\":1,\"tid\":").append(e.tid);
+                    out.append(",\"ts\":").appendFixed((e.starts[i] - r.origin) / 1000.0, 3);
+                    out.append(",\"dur\":").appendFixed((e.ends[i] - e.starts[i]) / 1000.0, 3);
+                    out.append(",\"name\":");
+                    appendString(out, e.names[i]);
+                    out.append("},\n");
+                }
+                written += counts[t];
+                out.append("{\"ph\":\"M\",\"pid\":1,\"tid\":").append(e.tid).append(",\"name\":\"thread_name\",\"args\":{\"name\":");
+                appendString(out, e.thread);
+                out.append("}},\n");
+            }
+            out.append("{\"ph\":\"M\",\"pid\":1,\"name\":\"process_name\",\"args\":{\"name\":\"A00852406\"}}\n]}\n");
+        } finally {
+            out.close();
+        }
+        return written;
+    }
+
+    /**
+     * Writes a JSON string literal.
+     */
+    private static void appendString(AsciiChannelWriter out, String s) throws IOException
+    {
+        out.append('"');
+        for(int i = 0; i < s.length(); i++)
+        {
+            char c = s.charAt(i);
+            if(c == '"' || c == '\\')
+                out.append('\\').append(c);
+            else if(c < 0x20)
+                out.append(' ');
+            else
+                out.append(c);
+        }
+        out.append('"');
+    }
+
+    /**
+     * Returns whether this is Android 4.3 or later, where platform trace markers are available.
+     * Outside Android the Build class isn't even looked at.
+     */
+    private static boolean usePlatform()
+    {
+        String vm = System.getProperty("java.vm.name");
+        return vm != null && vm.startsWith("Dalvik") && Build.VERSION.SDK_INT >= 18;
+    }
+}